@@ -0,0 +1,168 @@
+package com.github.rosjava.android_apps.common;
+
+import java.util.Arrays;
+
+/**
+ * Per-frame latency bookkeeping for {@link CameraView}.
+ *
+ * Every frame that reaches the screen contributes three numbers to rolling windows of the
+ * last {@link #WINDOW_SIZE} frames:
+ * <ul>
+ *     <li>network: header stamp to rosjava receive, in ROS time</li>
+ *     <li>local: receive to first draw, in device monotonic time</li>
+ *     <li>end to end: the sum of both, i.e. how old the image on screen is</li>
+ * </ul>
+ * Frames with an empty header stamp only count towards the local window.
+ */
+public class CameraLatencyMetrics {
+
+    public static final int WINDOW_SIZE = 256;
+
+    private final LatencyWindow network = new LatencyWindow();
+    private final LatencyWindow local = new LatencyWindow();
+    private final LatencyWindow endToEnd = new LatencyWindow();
+
+    private long receivedCount = 0;
+    private long decodedCount = 0;
+    private long droppedCount = 0;
+    private long drawnCount = 0;
+
+    synchronized void onReceived() {
+        receivedCount++;
+    }
+
+    synchronized void onDropped() {
+        droppedCount++;
+    }
+
+    synchronized void onDecoded() {
+        decodedCount++;
+    }
+
+    /**
+     * @param stampNanos header stamp, 0 if the publisher leaves it empty
+     * @param receiveRosNanos node time when the message arrived
+     * @param receiveNanos {@link System#nanoTime()} when the message arrived
+     * @param drawNanos {@link System#nanoTime()} of the first draw showing the frame
+     */
+    synchronized void onDrawn(long stampNanos, long receiveRosNanos, long receiveNanos, long drawNanos) {
+        drawnCount++;
+        long localNanos = drawNanos - receiveNanos;
+        local.add(localNanos);
+        if (stampNanos > 0) {
+            long networkNanos = receiveRosNanos - stampNanos;
+            network.add(networkNanos);
+            endToEnd.add(networkNanos + localNanos);
+        }
+    }
+
+    /**
+     * Forget the latency samples but keep the counters, e.g. after switching streams.
+     */
+    public synchronized void clearLatencies() {
+        network.clear();
+        local.clear();
+        endToEnd.clear();
+    }
+
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized long getDecodedCount() {
+        return decodedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable copy of the counters and latency percentiles at one point in time. Rates are
+     * computed against an earlier snapshot, so independent readers do not disturb each other.
+     */
+    public static class Snapshot {
+        public final long timeNanos;
+        public final long received;
+        public final long decoded;
+        public final long dropped;
+        public final long drawn;
+        public final double networkP50Ms, networkP95Ms, networkP99Ms;
+        public final double localP50Ms, localP95Ms, localP99Ms;
+        public final double endToEndP50Ms, endToEndP95Ms, endToEndP99Ms;
+
+        private Snapshot(CameraLatencyMetrics metrics) {
+            timeNanos = System.nanoTime();
+            received = metrics.receivedCount;
+            decoded = metrics.decodedCount;
+            dropped = metrics.droppedCount;
+            drawn = metrics.drawnCount;
+            long[] sorted = metrics.network.sorted();
+            networkP50Ms = percentileMs(sorted, 50);
+            networkP95Ms = percentileMs(sorted, 95);
+            networkP99Ms = percentileMs(sorted, 99);
+            sorted = metrics.local.sorted();
+            localP50Ms = percentileMs(sorted, 50);
+            localP95Ms = percentileMs(sorted, 95);
+            localP99Ms = percentileMs(sorted, 99);
+            sorted = metrics.endToEnd.sorted();
+            endToEndP50Ms = percentileMs(sorted, 50);
+            endToEndP95Ms = percentileMs(sorted, 95);
+            endToEndP99Ms = percentileMs(sorted, 99);
+        }
+
+        public double receivedRate(Snapshot previous) {
+            return rate(received, previous.received, previous);
+        }
+
+        public double decodedRate(Snapshot previous) {
+            return rate(decoded, previous.decoded, previous);
+        }
+
+        public double droppedRate(Snapshot previous) {
+            return rate(dropped, previous.dropped, previous);
+        }
+
+        private double rate(long count, long previousCount, Snapshot previous) {
+            double seconds = (timeNanos - previous.timeNanos) / 1e9;
+            return seconds <= 0 ? 0 : (count - previousCount) / seconds;
+        }
+
+        private static double percentileMs(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    private static class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int size = 0;
+        private int next = 0;
+
+        void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            if (size < samples.length) {
+                size++;
+            }
+        }
+
+        void clear() {
+            size = 0;
+            next = 0;
+        }
+
+        long[] sorted() {
+            long[] copy = Arrays.copyOf(samples, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
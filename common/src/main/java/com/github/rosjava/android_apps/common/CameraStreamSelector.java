@@ -0,0 +1,192 @@
+package com.github.rosjava.android_apps.common;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks, among a ranked list of image topics carrying the same camera at different
+ * qualities (e.g. full, half, throttled), the best one the link can currently sustain.
+ *
+ * Once per {@link #PERIOD_MS} the selector looks at what {@link CameraView} achieved on the
+ * current topic. A stream is degraded when the on-device latency or the share of dropped
+ * frames stays high, or no frame arrives, for {@link #DOWNGRADE_PERIODS} periods in a row, and
+ * the next better stream is only retried after {@link #UPGRADE_PERIODS} comfortably healthy
+ * periods, so the selection does not flap around the limit of the link.
+ *
+ * Only device clocks are used: latencies against the image stamps would take any offset
+ * between the robot's clock and the device's for link trouble. Nothing is judged during the
+ * first {@link #GRACE_PERIODS} periods after starting or switching topics, while the
+ * subscription is still being set up and no frame can be expected yet.
+ */
+public class CameraStreamSelector {
+
+    private static final String TAG = "CameraStreamSelector";
+
+    private static final long PERIOD_MS = 1000;
+    private static final int DOWNGRADE_PERIODS = 3;
+    private static final int UPGRADE_PERIODS = 15;
+    private static final int GRACE_PERIODS = 5;
+    private static final double MAX_LATENCY_MS = 400;
+    private static final double MAX_DROPPED_RATIO = 0.5;
+
+    private final CameraView cameraView;
+    private final List<String> topics;
+
+    private final Runnable evaluator = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+        }
+    };
+
+    private ScheduledExecutorService executorService;
+    private ScheduledFuture<?> timer;
+    private boolean paused = false;
+    private CameraLatencyMetrics.Snapshot lastSnapshot;
+    private int current = 0;
+    private int badPeriods = 0;
+    private int goodPeriods = 0;
+    private int gracePeriods = 0;
+
+    /**
+     * @param topics candidate topics, best quality first
+     */
+    public CameraStreamSelector(CameraView cameraView, List<String> topics) {
+        this.cameraView = cameraView;
+        this.topics = new ArrayList<String>(topics);
+    }
+
+    /**
+     * Read a candidate list from an app parameter, given either as a list or as a
+     * comma-separated string.
+     */
+    public static List<String> parseTopics(Object value) {
+        List<String> topics = new ArrayList<String>();
+        if (value instanceof List) {
+            for (Object topic : (List<?>) value) {
+                topics.add(topic.toString().trim());
+            }
+        } else if (value != null) {
+            for (String topic : value.toString().split(",")) {
+                if (topic.trim().length() > 0) {
+                    topics.add(topic.trim());
+                }
+            }
+        }
+        return topics;
+    }
+
+    public synchronized String getCurrentTopic() {
+        return topics.get(current);
+    }
+
+    public synchronized void start(ScheduledExecutorService executorService) {
+        stop();
+        this.executorService = executorService;
+        cameraView.setTopicName(topics.get(current));
+        if (!paused) {
+            schedule();
+        }
+    }
+
+    /**
+     * Stop evaluating until {@link #resume()}, e.g. while the activity is in the background
+     * and the camera is paused anyway.
+     */
+    public synchronized void pause() {
+        paused = true;
+        cancel();
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        if (executorService != null && timer == null) {
+            schedule();
+        }
+    }
+
+    /**
+     * Stop evaluating for good. The selector may be started again afterwards.
+     */
+    public synchronized void stop() {
+        cancel();
+        executorService = null;
+    }
+
+    private void schedule() {
+        lastSnapshot = cameraView.getMetrics().getSnapshot();
+        badPeriods = 0;
+        goodPeriods = 0;
+        gracePeriods = GRACE_PERIODS;
+        timer = executorService.scheduleAtFixedRate(evaluator, PERIOD_MS, PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancel() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    private synchronized void evaluate() {
+        CameraLatencyMetrics.Snapshot snapshot = cameraView.getMetrics().getSnapshot();
+        CameraLatencyMetrics.Snapshot previous = lastSnapshot;
+        lastSnapshot = snapshot;
+        if (!cameraView.isStreaming()) {
+            // Nothing meaningful to measure on a paused or thumbnail-only camera, nor right
+            // after it resumes.
+            badPeriods = 0;
+            goodPeriods = 0;
+            gracePeriods = GRACE_PERIODS;
+            return;
+        }
+        if (gracePeriods > 0) {
+            gracePeriods--;
+            return;
+        }
+
+        double received = snapshot.receivedRate(previous);
+        double dropped = snapshot.droppedRate(previous);
+        double latency = snapshot.localP95Ms;
+        if (Double.isNaN(latency)) {
+            latency = 0;
+        }
+        boolean stalled = received == 0;
+        boolean bad = stalled || latency > MAX_LATENCY_MS || dropped > MAX_DROPPED_RATIO * received;
+        boolean good = !stalled && latency < MAX_LATENCY_MS / 2 && dropped == 0;
+
+        if (bad) {
+            goodPeriods = 0;
+            badPeriods++;
+        } else if (good) {
+            badPeriods = 0;
+            goodPeriods++;
+        } else {
+            badPeriods = 0;
+            goodPeriods = 0;
+        }
+
+        if (badPeriods >= DOWNGRADE_PERIODS && current + 1 < topics.size()) {
+            select(current + 1);
+        } else if (goodPeriods >= UPGRADE_PERIODS && current > 0) {
+            select(current - 1);
+        }
+    }
+
+    private void select(int index) {
+        Log.i(TAG, "Switching camera stream from " + topics.get(current) + " to " + topics.get(index));
+        current = index;
+        badPeriods = 0;
+        goodPeriods = 0;
+        gracePeriods = GRACE_PERIODS;
+        cameraView.switchTopic(topics.get(index));
+        // Latencies measured on the old stream say nothing about the new one.
+        cameraView.getMetrics().clearLatencies();
+        lastSnapshot = cameraView.getMetrics().getSnapshot();
+    }
+}
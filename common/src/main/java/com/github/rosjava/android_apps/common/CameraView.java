@@ -0,0 +1,365 @@
+package com.github.rosjava.android_apps.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.AttributeSet;
+
+import org.ros.android.MessageCallable;
+import org.ros.android.view.RosImageView;
+import org.ros.message.MessageListener;
+import org.ros.message.Time;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Subscriber;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link RosImageView} for compressed camera images that never decodes on the subscriber
+ * or UI threads.
+ *
+ * Incoming frames go into a single-slot mailbox; a newer frame replaces an undecoded older
+ * one, which is counted as dropped. A dedicated worker decodes whatever is in the mailbox
+ * and hands the bitmap to the UI thread, and does not pick up the next frame until that
+ * bitmap is on screen. At most one frame is ever waiting, so latency stays bounded to
+ * roughly one decode plus one draw however slow decoding gets.
+ *
+ * The view also tells a {@link PooledBitmapFromCompressedImage} its current size, so
+ * frames are subsampled to fit whichever pane the view is in at the moment.
+ *
+ * Nothing is pulled over the network while the camera is not really being watched: the
+ * subscription is dropped while the activity is paused, and while the view is minimized
+ * it is only opened every few seconds to grab a single thumbnail frame.
+ *
+ * Each frame's header stamp, receive time, decode completion and first draw are fed into
+ * a {@link CameraLatencyMetrics}, see {@link #getMetrics()}.
+ */
+public class CameraView extends RosImageView<sensor_msgs.CompressedImage> {
+
+    private static final long THUMBNAIL_PERIOD_SECONDS = 5;
+
+    private final AtomicReference<Frame> mailbox = new AtomicReference<Frame>();
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private final CameraLatencyMetrics metrics = new CameraLatencyMetrics();
+    // Only touched on the UI thread.
+    private Frame undrawnFrame;
+
+    private String topicName;
+    private MessageCallable<Bitmap, sensor_msgs.CompressedImage> callable;
+    private ExecutorService decodeExecutor;
+    private Subscriber<sensor_msgs.CompressedImage> subscriber;
+    private ScheduledFuture<?> thumbnailTimer;
+    private volatile ConnectedNode connectedNode;
+    private volatile boolean minimized = false;
+    private volatile boolean paused = false;
+
+    public CameraView(Context context) {
+        super(context);
+    }
+
+    public CameraView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public CameraView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    @Override
+    public void setTopicName(String topicName) {
+        super.setTopicName(topicName);
+        this.topicName = topicName;
+    }
+
+    @Override
+    public void setMessageToBitmapCallable(MessageCallable<Bitmap, sensor_msgs.CompressedImage> callable) {
+        super.setMessageToBitmapCallable(callable);
+        this.callable = callable;
+        updateTargetSize(getWidth(), getHeight());
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        updateTargetSize(width, height);
+    }
+
+    private void updateTargetSize(int width, int height) {
+        if (callable instanceof PooledBitmapFromCompressedImage) {
+            ((PooledBitmapFromCompressedImage) callable).setTargetSize(width, height);
+        }
+    }
+
+    /**
+     * Dropped frames in these metrics are frames replaced in the mailbox before the worker
+     * got to them.
+     */
+    public CameraLatencyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Minimized views only refresh a thumbnail every {@link #THUMBNAIL_PERIOD_SECONDS}.
+     */
+    public void setMinimized(boolean minimized) {
+        this.minimized = minimized;
+        updateSubscription();
+    }
+
+    /**
+     * Paused views do not subscribe at all. Call from the activity's onPause/onResume.
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        updateSubscription();
+    }
+
+    public boolean isSubscribed() {
+        synchronized (this) {
+            return subscriber != null;
+        }
+    }
+
+    /**
+     * @return true while the full camera stream is being received, i.e. subscribed and
+     * neither paused nor minimized
+     */
+    public boolean isStreaming() {
+        return !paused && !minimized && isSubscribed();
+    }
+
+    /**
+     * Move the subscription to another topic, e.g. a lower quality stream of the same camera.
+     */
+    public void switchTopic(String topicName) {
+        ConnectedNode node;
+        synchronized (this) {
+            setTopicName(topicName);
+            node = connectedNode;
+            if (subscriber == null || node == null) {
+                return;
+            }
+        }
+        node.getScheduledExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CameraView.this) {
+                    unsubscribe();
+                    applySubscriptionState();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        // Deliberately not calling super: it would decode every message on its own.
+        decodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "camera_decoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (this) {
+            this.connectedNode = connectedNode;
+            applySubscriptionState();
+        }
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        synchronized (this) {
+            cancelThumbnailTimer();
+            unsubscribe();
+            connectedNode = null;
+        }
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdownNow();
+            decodeExecutor = null;
+        }
+        mailbox.set(null);
+        busy.set(false);
+        super.onShutdown(node);
+    }
+
+    private void updateSubscription() {
+        ConnectedNode node;
+        synchronized (this) {
+            node = connectedNode;
+        }
+        if (node == null) {
+            return;
+        }
+        // Registering and unregistering talk to the master; keep that off the UI thread.
+        node.getScheduledExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CameraView.this) {
+                    applySubscriptionState();
+                }
+            }
+        });
+    }
+
+    private void applySubscriptionState() {
+        if (connectedNode == null) {
+            return;
+        }
+        cancelThumbnailTimer();
+        if (paused) {
+            unsubscribe();
+        } else {
+            // When minimized, the listener drops the subscription again after one frame.
+            subscribe();
+        }
+    }
+
+    private void subscribe() {
+        if (subscriber != null) {
+            return;
+        }
+        subscriber = connectedNode.newSubscriber(topicName, sensor_msgs.CompressedImage._TYPE);
+        subscriber.addMessageListener(new MessageListener<sensor_msgs.CompressedImage>() {
+            @Override
+            public void onNewMessage(sensor_msgs.CompressedImage message) {
+                long receiveNanos = System.nanoTime();
+                ConnectedNode node = connectedNode;
+                Time receiveTime = node == null ? null : node.getCurrentTime();
+                metrics.onReceived();
+                Frame frame = new Frame(message, receiveTime == null ? 0 : receiveTime.totalNsecs(),
+                        receiveNanos);
+                if (mailbox.getAndSet(frame) != null) {
+                    metrics.onDropped();
+                }
+                scheduleDecode();
+                if (minimized) {
+                    onThumbnailReceived();
+                }
+            }
+        });
+    }
+
+    private void unsubscribe() {
+        if (subscriber != null) {
+            subscriber.shutdown();
+            subscriber = null;
+        }
+    }
+
+    private void cancelThumbnailTimer() {
+        if (thumbnailTimer != null) {
+            thumbnailTimer.cancel(false);
+            thumbnailTimer = null;
+        }
+    }
+
+    private void onThumbnailReceived() {
+        final ConnectedNode node;
+        synchronized (this) {
+            node = connectedNode;
+        }
+        if (node == null) {
+            return;
+        }
+        node.getScheduledExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CameraView.this) {
+                    if (!minimized || connectedNode == null || thumbnailTimer != null) {
+                        return;
+                    }
+                    unsubscribe();
+                    thumbnailTimer = connectedNode.getScheduledExecutorService().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (CameraView.this) {
+                                thumbnailTimer = null;
+                                applySubscriptionState();
+                            }
+                        }
+                    }, THUMBNAIL_PERIOD_SECONDS, TimeUnit.SECONDS);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (undrawnFrame != null) {
+            Frame frame = undrawnFrame;
+            undrawnFrame = null;
+            metrics.onDrawn(frame.stampNanos, frame.receiveRosNanos, frame.receiveNanos, System.nanoTime());
+        }
+    }
+
+    private void scheduleDecode() {
+        ExecutorService executor = decodeExecutor;
+        if (executor == null || mailbox.get() == null) {
+            return;
+        }
+        if (busy.compareAndSet(false, true)) {
+            executor.execute(decodeRunnable);
+        }
+    }
+
+    private void onFrameDone() {
+        busy.set(false);
+        // A frame may have arrived while we were busy and found nobody to schedule it.
+        scheduleDecode();
+    }
+
+    private final Runnable decodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean handedOff = false;
+            try {
+                final Frame frame = mailbox.getAndSet(null);
+                final Bitmap bitmap = frame == null ? null : callable.call(frame.message);
+                if (bitmap == null) {
+                    return;
+                }
+                metrics.onDecoded();
+                handedOff = post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            undrawnFrame = frame;
+                            setImageBitmap(bitmap);
+                        } finally {
+                            onFrameDone();
+                        }
+                    }
+                });
+            } finally {
+                // A frame that fails to decode must not stop decoding for good.
+                if (!handedOff) {
+                    onFrameDone();
+                }
+            }
+        }
+    };
+
+    private static class Frame {
+        final sensor_msgs.CompressedImage message;
+        final long stampNanos;
+        final long receiveRosNanos;
+        final long receiveNanos;
+
+        Frame(sensor_msgs.CompressedImage message, long receiveRosNanos, long receiveNanos) {
+            this.message = message;
+            this.stampNanos = message.getHeader().getStamp().totalNsecs();
+            this.receiveRosNanos = receiveRosNanos;
+            this.receiveNanos = receiveNanos;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.rosjava.android_apps.common;
+
+import android.util.Log;
+
+import org.ros.android.view.visualization.VisualizationView;
+import org.ros.android.view.visualization.layer.SubscriberLayer;
+import org.ros.android.view.visualization.layer.TfLayer;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.rosjava_geometry.Vector3;
+
+import java.util.Locale;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import sensor_msgs.LaserScan;
+
+/**
+ * Draws a laser scan topic like the stock LaserScanLayer, as a translucent fan of free space
+ * with the hits as points, for the cost of what the screen can show.
+ *
+ * The subscriber only keeps the newest scan; vertices are made from it on the GL thread, so
+ * scans arriving faster than frames are drawn are dropped without any work. Beams are
+ * decimated so that neighbouring points at the longest range in the scan land about
+ * {@link #MIN_POINT_SPACING_PIXELS} apart at the current zoom, and a scan whose kept ranges
+ * all moved by less than a pixel keeps the vertices of the one before; see
+ * {@link LaserScanVertices}.
+ *
+ * Every {@link #LOG_INTERVAL_SCANS} scans received, the counters below are logged, so the cost
+ * per scan can be read off a device with logcat.
+ */
+public class DecimatedLaserScanLayer extends SubscriberLayer<LaserScan> implements TfLayer {
+
+    public static final float MIN_POINT_SPACING_PIXELS = 4;
+    public static final int LOG_INTERVAL_SCANS = 600;
+    private static final String TAG = "DecimatedLaserScanLayer";
+    private static final float POINT_SIZE = 5;
+
+    private final LaserScanVertices vertices = new LaserScanVertices();
+    private GraphName frame;
+    private volatile LaserScan pending;
+
+    private long receivedCount = 0;
+    private long droppedCount = 0;
+
+    public DecimatedLaserScanLayer(String topic) {
+        super(GraphName.of(topic), LaserScan._TYPE);
+    }
+
+    @Override
+    public void onStart(VisualizationView view, ConnectedNode connectedNode) {
+        super.onStart(view, connectedNode);
+        getSubscriber().addMessageListener(new MessageListener<LaserScan>() {
+            @Override
+            public void onNewMessage(LaserScan message) {
+                synchronized (DecimatedLaserScanLayer.this) {
+                    receivedCount++;
+                    if (pending != null) {
+                        droppedCount++;
+                    }
+                    pending = message;
+                    if (receivedCount % LOG_INTERVAL_SCANS == 0) {
+                        logStats();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Scans received, dropped unseen, turned into vertices, and skipped as unchanged at the
+     * current zoom; direct buffers allocated; and the mean time spent making the vertices of
+     * a scan, to check the cost per scan on a device.
+     */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getBuiltCount() {
+        return vertices.getBuiltCount();
+    }
+
+    public long getSuppressedCount() {
+        return vertices.getSuppressedCount();
+    }
+
+    public long getAllocationCount() {
+        return vertices.getAllocationCount();
+    }
+
+    public double getMeanBuildMicros() {
+        return vertices.getMeanBuildMicros();
+    }
+
+    private void logStats() {
+        Log.i(TAG, String.format(Locale.US,
+                "%s: %d scans received, %d dropped, %d built in %.0f us on average, "
+                        + "%d unchanged, %d buffers allocated",
+                getSubscriber().getTopicName(), receivedCount, droppedCount, getBuiltCount(),
+                getMeanBuildMicros(), getSuppressedCount(), getAllocationCount()));
+    }
+
+    @Override
+    public void draw(VisualizationView view, GL10 gl) {
+        LaserScan scan;
+        synchronized (this) {
+            scan = pending;
+            pending = null;
+        }
+        if (scan != null) {
+            vertices.update(scan.getRanges(), scan.getAngleMin(), scan.getAngleIncrement(),
+                    scan.getRangeMin(), scan.getRangeMax(), metersPerPixel(view));
+            synchronized (this) {
+                frame = GraphName.of(scan.getHeader().getFrameId());
+            }
+        }
+        int vertexCount = vertices.getVertexCount();
+        if (vertexCount < 2) {
+            return;
+        }
+        gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
+        gl.glEnable(GL10.GL_BLEND);
+        gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+        gl.glVertexPointer(2, GL10.GL_FLOAT, 0, vertices.getVertices());
+        gl.glColor4f(0.216f, 0.490f, 0.980f, 0.1f);
+        gl.glDrawArrays(GL10.GL_TRIANGLE_FAN, 0, vertexCount);
+        gl.glColor4f(0.216f, 0.490f, 0.980f, 0.3f);
+        gl.glPointSize(POINT_SIZE);
+        gl.glDrawArrays(GL10.GL_POINTS, 1, vertexCount - 1);
+        gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+    }
+
+    @Override
+    public synchronized GraphName getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return meters per screen pixel in the camera frame, 0 until the view has a size
+     */
+    private static double metersPerPixel(VisualizationView view) {
+        if (view.getWidth() == 0) {
+            return 0;
+        }
+        Vector3 origin = view.getCamera().toCameraFrame(0, 0);
+        Vector3 next = view.getCamera().toCameraFrame(view.getWidth(), 0);
+        return next.subtract(origin).getMagnitude() / view.getWidth();
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.rosjava.android_apps.common;
+
+import java.nio.ByteOrder;
+
+/**
+ * 256-entry lookup tables from occupancy grid cell values to texture pixels.
+ *
+ * A cell is a signed byte, -1 for unknown and 0 to 100 for the occupancy probability; the
+ * tables are indexed by its unsigned value. Entries are pre-swizzled for the platform byte
+ * order, so writing one as an int into a native-order buffer lays down the R, G, B, A bytes GL
+ * expects, with no per-pixel shuffling.
+ */
+public final class GridColors {
+
+    private static final int UNKNOWN = 0x40808080;
+    private static final int FREE = 0xfff7f7f7;
+    private static final int OCCUPIED = 0xff000000;
+
+    /**
+     * Map and costmap cells combined in one byte, as map_nav draws a costmap that lines up with
+     * its map: the top three bits hold the map cell in eight classes, the low five the cost in
+     * 32 classes.
+     */
+    public static final int COMPOSITE_COST_MASK = 0x1f;
+    public static final int COMPOSITE_MAP_MASK = 0xe0;
+
+    private GridColors() {
+    }
+
+    /**
+     * Occupancy map colors: free cells light, occupied ones dark with a gradient in between,
+     * unknown cells a faint gray.
+     */
+    public static int[] newMapTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = toNative(mapArgb((byte) i));
+        }
+        return table;
+    }
+
+    /**
+     * Costmap colors, as costmap_2d publishes its grid: free and unknown cells transparent,
+     * costs from 1 to 98 fading from blue to red, the inscribed value 99 cyan and lethal
+     * obstacles at 100 magenta. Meant to be drawn over the map.
+     */
+    public static int[] newCostmapTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = toNative(costmapArgb((byte) i));
+        }
+        return table;
+    }
+
+    /**
+     * Colors of composite cells: the costmap color of the cost class laid over the map color
+     * of the map class.
+     */
+    public static int[] newCompositeTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            int mapClass = (i & COMPOSITE_MAP_MASK) >> 5;
+            int mapValue = mapClass == 0 ? -1 : mapClass == 1 ? 0 : (mapClass - 1) * 100 / 6;
+            int costClass = i & COMPOSITE_COST_MASK;
+            int costValue = costClass == 31 ? 100 : costClass == 30 ? 99
+                    : costClass == 0 ? 0 : 1 + (costClass - 1) * 98 / 29;
+            table[i] = toNative(over(costmapArgb(costValue), mapArgb(mapValue)));
+        }
+        return table;
+    }
+
+    /**
+     * Composite map bits for each map cell value, indexed by its unsigned value.
+     */
+    public static byte[] newCompositeMapBits() {
+        byte[] bits = new byte[256];
+        for (int i = 0; i < bits.length; i++) {
+            int value = (byte) i;
+            int mapClass;
+            if (value < 0 || value > 100) {
+                mapClass = 0;
+            } else if (value == 0) {
+                mapClass = 1;
+            } else {
+                mapClass = 2 + (value * 6 - 1) / 100;
+            }
+            bits[i] = (byte) (mapClass << 5);
+        }
+        return bits;
+    }
+
+    /**
+     * Composite cost bits for each costmap cell value, indexed by its unsigned value.
+     */
+    public static byte[] newCompositeCostBits() {
+        byte[] bits = new byte[256];
+        for (int i = 0; i < bits.length; i++) {
+            int value = (byte) i;
+            int costClass;
+            if (value <= 0 || value > 100) {
+                costClass = 0;
+            } else if (value == 100) {
+                costClass = 31;
+            } else if (value == 99) {
+                costClass = 30;
+            } else {
+                costClass = 1 + (value - 1) * 29 / 98;
+            }
+            bits[i] = (byte) costClass;
+        }
+        return bits;
+    }
+
+    private static int mapArgb(int value) {
+        if (value < 0 || value > 100) {
+            return UNKNOWN;
+        } else if (value == 0) {
+            return FREE;
+        } else if (value == 100) {
+            return OCCUPIED;
+        }
+        int level = 0xf7 - value * 0xf7 / 100;
+        return 0xff000000 | (level << 16) | (level << 8) | level;
+    }
+
+    private static int costmapArgb(int value) {
+        if (value <= 0 || value > 100) {
+            return 0;
+        } else if (value == 99) {
+            return 0xc000ffff;
+        } else if (value == 100) {
+            return 0xd0ff00ff;
+        }
+        int red = value * 0xff / 98;
+        return 0xa0000000 | (red << 16) | (0xff - red);
+    }
+
+    /**
+     * Alpha-blend one ARGB color over another.
+     */
+    private static int over(int top, int bottom) {
+        int topAlpha = top >>> 24;
+        int bottomAlpha = (bottom >>> 24) * (0xff - topAlpha) / 0xff;
+        int alpha = topAlpha + bottomAlpha;
+        if (alpha == 0) {
+            return 0;
+        }
+        int argb = alpha << 24;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int channel = (((top >> shift) & 0xff) * topAlpha
+                    + ((bottom >> shift) & 0xff) * bottomAlpha) / alpha;
+            argb |= channel << shift;
+        }
+        return argb;
+    }
+
+    /**
+     * Convert an ARGB color to the int whose native-order bytes are R, G, B, A.
+     */
+    public static int toNative(int argb) {
+        int a = argb >>> 24;
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            return (a << 24) | (b << 16) | (g << 8) | r;
+        } else {
+            return (r << 24) | (g << 16) | (b << 8) | a;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.rosjava.android_apps.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts batches of {@link GridTile}s on all cores.
+ *
+ * Each tile is cut into bands of {@link #BAND_ROWS} rows, so that even a single changed tile
+ * keeps several cores busy, and the bands are run on a pool shared by every grid of the app.
+ * Bands only read the cells and the color table and write their own rows of the tile's direct
+ * buffer, so they need no locking. The caller waits for the whole batch.
+ */
+public final class GridConverter {
+
+    public static final int BAND_ROWS = 64;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService EXECUTOR = THREADS < 2 ? null
+            : Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "grid_converter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private GridConverter() {
+    }
+
+    /**
+     * Convert tiles that all belong to one level.
+     *
+     * @param cells the whole level, row-major
+     * @param levelWidth row length of {@code cells}
+     * @param colors table from {@link GridColors}
+     */
+    public static void convert(List<GridTile> tiles, byte[] cells, int levelWidth, int[] colors) {
+        convert(tiles, cells, levelWidth, colors, EXECUTOR);
+    }
+
+    /**
+     * @param executor runs the bands, null to convert inline
+     */
+    static void convert(List<GridTile> tiles, final byte[] cells, final int levelWidth,
+                        final int[] colors, ExecutorService executor) {
+        if (executor == null || tiles.isEmpty()) {
+            for (GridTile tile : tiles) {
+                tile.convert(cells, levelWidth, colors);
+            }
+            return;
+        }
+        List<Callable<Void>> bands = new ArrayList<Callable<Void>>();
+        for (final GridTile tile : tiles) {
+            for (int row = 0; row < GridTile.SIZE; row += BAND_ROWS) {
+                final int fromRow = row;
+                bands.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        tile.convertRows(cells, levelWidth, colors, fromRow, fromRow + BAND_ROWS);
+                        return null;
+                    }
+                });
+            }
+        }
+        try {
+            executor.invokeAll(bands);
+        } catch (InterruptedException e) {
+            // Unfinished bands were cancelled; finish the job here.
+            Thread.currentThread().interrupt();
+            for (GridTile tile : tiles) {
+                tile.convertRows(cells, levelWidth, colors, 0, GridTile.SIZE);
+            }
+        }
+        for (GridTile tile : tiles) {
+            tile.converted();
+        }
+    }
+}
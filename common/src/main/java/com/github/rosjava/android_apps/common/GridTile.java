@@ -0,0 +1,307 @@
+package com.github.rosjava.android_apps.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * One {@link #SIZE} x {@link #SIZE} cell square of one level of a {@link TiledGrid}, and its
+ * texture.
+ *
+ * Pixels are converted into a direct buffer lent by the grid, in bands of rows that
+ * {@link GridConverter} may spread over several threads, and uploaded on the GL thread
+ * only when they changed since the last upload: the first time with glTexImage2D, afterwards
+ * with glTexSubImage2D into the existing texture. Tiles on the right and top edges of a grid
+ * only draw the part of the texture the grid covers.
+ *
+ * A paletted tile keeps one byte per cell behind a copy of the 256 colors, and is uploaded as
+ * a GL_PALETTE8_RGBA8_OES texture, a quarter of the RGBA size; GL ES has no partial update for
+ * those, so a changed tile is uploaded whole. If the driver turns the format down, paletted
+ * tiles are reported unsupported for the rest of the process and grids go back to RGBA.
+ */
+public class GridTile {
+
+    /** Power of two, as GL ES 1 textures require. */
+    public static final int SIZE = 256;
+    public static final int PIXEL_BYTES = SIZE * SIZE * 4;
+    public static final int PALETTE_BYTES = 256 * 4;
+    public static final int PALETTED_BYTES = PALETTE_BYTES + SIZE * SIZE;
+
+    private static volatile boolean palettedSupported = true;
+
+    private final int level;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final boolean paletted;
+    private final ByteBuffer pixels;
+    private final IntBuffer pixelInts;
+    private final FloatBuffer textureCoordinates;
+    private FloatBuffer vertices;
+    private float verticesCellSize;
+    private boolean stale = true;
+    private boolean dirty = false;
+    private int textureId = 0;
+    private volatile int textureBytes = 0;
+    private long lastUsedFrame;
+
+    /**
+     * @param x first column of the level covered by this tile
+     * @param y first row of the level covered by this tile
+     * @param paletted whether to keep cells as palette indices instead of RGBA pixels
+     * @param pixels direct buffer of at least {@link #getBufferBytes(boolean)}, any content
+     */
+    public GridTile(int level, int x, int y, int width, int height, boolean paletted,
+                    ByteBuffer pixels) {
+        this.level = level;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.paletted = paletted;
+        this.pixels = pixels;
+        pixels.order(ByteOrder.nativeOrder());
+        pixelInts = pixels.asIntBuffer();
+        float right = (float) width / SIZE;
+        float top = (float) height / SIZE;
+        textureCoordinates = newFloatBuffer(new float[] { 0, 0, right, 0, 0, top, right, top });
+    }
+
+    public static int getBufferBytes(boolean paletted) {
+        return paletted ? PALETTED_BYTES : PIXEL_BYTES;
+    }
+
+    /**
+     * @return false once a driver refused a paletted texture
+     */
+    public static boolean isPalettedSupported() {
+        return palettedSupported;
+    }
+
+    public boolean isPaletted() {
+        return paletted;
+    }
+
+    /**
+     * @return bytes handed to GL for this tile's texture, 0 while it has none
+     */
+    public int getTextureBytes() {
+        return textureBytes;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return whether the tile holds a texture, which only {@link #release(GL10)} frees
+     */
+    public synchronized boolean hasTexture() {
+        return textureId != 0;
+    }
+
+    /**
+     * @return the pixel buffer, for reuse once the tile is dropped without ever being drawn
+     */
+    ByteBuffer getBuffer() {
+        return pixels;
+    }
+
+    long getLastUsedFrame() {
+        return lastUsedFrame;
+    }
+
+    void setLastUsedFrame(long frame) {
+        lastUsedFrame = frame;
+    }
+
+    /**
+     * The cells under this tile changed; it gets converted again before it is next drawn.
+     */
+    public synchronized void markStale() {
+        stale = true;
+    }
+
+    public synchronized boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Convert the tile's cells and mark it for upload.
+     *
+     * @param cells the whole level, row-major
+     * @param levelWidth row length of {@code cells}
+     * @param colors table from {@link GridColors}
+     */
+    public void convert(byte[] cells, int levelWidth, int[] colors) {
+        convertRows(cells, levelWidth, colors, 0, SIZE);
+        converted();
+    }
+
+    /**
+     * Convert a band of the tile's pixel rows, rows beyond the grid being cleared. Bands that
+     * do not overlap may be converted concurrently; {@link #converted()} follows once all are
+     * done.
+     */
+    void convertRows(byte[] cells, int levelWidth, int[] colors, int fromRow, int toRow) {
+        if (paletted) {
+            convertIndexRows(cells, levelWidth, colors, fromRow, toRow);
+            return;
+        }
+        // A view of our own, so bulk puts from several threads do not share a position.
+        IntBuffer out = pixelInts.duplicate();
+        int[] rowPixels = new int[SIZE];
+        for (int row = fromRow; row < toRow; row++) {
+            if (row < height) {
+                int cell = (y + row) * levelWidth + x;
+                for (int column = 0; column < width; column++) {
+                    rowPixels[column] = colors[cells[cell++] & 0xff];
+                }
+            } else if (row == height || fromRow == row) {
+                Arrays.fill(rowPixels, 0);
+            }
+            out.position(row * SIZE);
+            out.put(rowPixels);
+        }
+    }
+
+    /**
+     * Paletted counterpart of {@link #convertRows}: the cells themselves are the indices, so
+     * rows are copied as they are, and the first band lays down the palette. Every index is a
+     * color in use, so the area beyond the grid repeats the last row and column instead, which
+     * keeps filtering at the edges from bleeding in anything else.
+     */
+    private void convertIndexRows(byte[] cells, int levelWidth, int[] colors, int fromRow,
+                                  int toRow) {
+        if (fromRow == 0) {
+            for (int i = 0; i < colors.length; i++) {
+                pixelInts.put(i, colors[i]);
+            }
+        }
+        ByteBuffer out = pixels.duplicate();
+        byte[] rowIndices = new byte[SIZE];
+        for (int row = fromRow; row < toRow; row++) {
+            if (row < height || row == fromRow) {
+                int cellRow = Math.min(row, height - 1);
+                System.arraycopy(cells, (y + cellRow) * levelWidth + x, rowIndices, 0, width);
+                Arrays.fill(rowIndices, width, SIZE, rowIndices[width - 1]);
+            }
+            out.position(PALETTE_BYTES + row * SIZE);
+            out.put(rowIndices);
+        }
+    }
+
+    synchronized void converted() {
+        stale = false;
+        dirty = true;
+    }
+
+    /**
+     * Draw the tile in grid coordinates, i.e. with the grid origin already applied. GL thread
+     * only.
+     *
+     * @param cellSize size of a cell of this tile's level, in meters
+     */
+    public void draw(GL10 gl, float cellSize) {
+        synchronized (this) {
+            if (textureId == 0) {
+                int[] ids = new int[1];
+                gl.glGenTextures(1, ids, 0);
+                textureId = ids[0];
+                gl.glBindTexture(GL10.GL_TEXTURE_2D, textureId);
+                gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+                gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_NEAREST);
+                gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+                gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+                if (!upload(gl, true)) {
+                    return;
+                }
+            } else {
+                gl.glBindTexture(GL10.GL_TEXTURE_2D, textureId);
+                if (dirty && !upload(gl, false)) {
+                    return;
+                }
+            }
+        }
+        if (vertices == null || verticesCellSize != cellSize) {
+            float left = x * cellSize;
+            float bottom = y * cellSize;
+            float right = left + width * cellSize;
+            float top = bottom + height * cellSize;
+            vertices = newFloatBuffer(new float[] {
+                    left, bottom, right, bottom, left, top, right, top });
+            verticesCellSize = cellSize;
+        }
+        gl.glVertexPointer(2, GL10.GL_FLOAT, 0, vertices);
+        gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, textureCoordinates);
+        gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private boolean upload(GL10 gl, boolean created) {
+        pixels.position(0);
+        if (paletted) {
+            // Drop errors left by others, so that one here is ours.
+            while (gl.glGetError() != GL10.GL_NO_ERROR) {
+            }
+            gl.glCompressedTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_PALETTE8_RGBA8_OES, SIZE,
+                    SIZE, 0, PALETTED_BYTES, pixels);
+            if (gl.glGetError() != GL10.GL_NO_ERROR) {
+                palettedSupported = false;
+                release(gl);
+                return false;
+            }
+        } else if (created) {
+            gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, SIZE, SIZE, 0,
+                    GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixels);
+        } else {
+            gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, 0, SIZE, SIZE,
+                    GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixels);
+        }
+        textureBytes = getBufferBytes(paletted);
+        dirty = false;
+        return true;
+    }
+
+    /**
+     * Free the texture. GL thread only.
+     *
+     * @return the pixel buffer, for reuse by another tile
+     */
+    public ByteBuffer release(GL10 gl) {
+        if (textureId != 0) {
+            gl.glDeleteTextures(1, new int[] { textureId }, 0);
+            textureId = 0;
+            textureBytes = 0;
+        }
+        return pixels;
+    }
+
+    private static FloatBuffer newFloatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values);
+        buffer.position(0);
+        return buffer;
+    }
+}
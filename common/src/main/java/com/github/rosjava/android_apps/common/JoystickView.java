@@ -0,0 +1,123 @@
+package com.github.rosjava.android_apps.common;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+
+import org.ros.android.view.VirtualJoystickView;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+
+/**
+ * {@link VirtualJoystickView} whose velocity commands go out through a fixed-rate
+ * {@link VelocityPublisher} instead of at the pace of touch events.
+ *
+ * The stock widget still draws the stick and listens to odometry, but its own publisher is
+ * moved to a private topic nobody subscribes to, so the velocity publisher is the only
+ * writer on the command topic.
+ */
+public class JoystickView extends VirtualJoystickView {
+
+    private static final String UNUSED_TOPIC = "~joystick_raw";
+
+    private String topicName;
+    private double rateHz = VelocityPublisher.DEFAULT_RATE_HZ;
+    private VelocityPublisher velocityPublisher;
+
+    public JoystickView(Context context) {
+        super(context);
+    }
+
+    public JoystickView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public JoystickView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    @Override
+    public void setTopicName(String topicName) {
+        this.topicName = topicName;
+        super.setTopicName(UNUSED_TOPIC);
+    }
+
+    /**
+     * Set the command publishing rate. Takes effect on the next start.
+     */
+    public void setPublishRate(double rateHz) {
+        this.rateHz = rateHz;
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        super.onStart(connectedNode);
+        velocityPublisher = new VelocityPublisher(topicName, rateHz);
+        velocityPublisher.start(connectedNode);
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        if (velocityPublisher != null) {
+            velocityPublisher.shutdown();
+            velocityPublisher = null;
+        }
+        super.onShutdown(node);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = super.onTouchEvent(event);
+        VelocityPublisher publisher = velocityPublisher;
+        if (publisher == null) {
+            return handled;
+        }
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_MOVE:
+                updateVelocity(publisher, event.getX(), event.getY());
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                publisher.stop();
+                break;
+        }
+        return handled;
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasWindowFocus) {
+        super.onWindowFocusChanged(hasWindowFocus);
+        // Lost touch because a dialog or another app came up: do not keep driving.
+        if (!hasWindowFocus && velocityPublisher != null) {
+            velocityPublisher.stop();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (velocityPublisher != null) {
+            velocityPublisher.stop();
+        }
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Same mapping as the stock widget: forward is up and turning left is left, both scaled
+     * by how far the finger is from the centre, clipped to the stick's radius.
+     */
+    private void updateVelocity(VelocityPublisher publisher, float x, float y) {
+        float radius = Math.min(getWidth(), getHeight()) / 2f;
+        if (radius <= 0) {
+            return;
+        }
+        double forward = (getHeight() / 2f - y) / radius;
+        double left = (getWidth() / 2f - x) / radius;
+        double magnitude = Math.hypot(forward, left);
+        if (magnitude > 1) {
+            forward /= magnitude;
+            left /= magnitude;
+        }
+        publisher.setVelocity(forward, 0, left);
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.rosjava.android_apps.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The vertices {@link DecimatedLaserScanLayer} draws for a scan: the scanner origin followed by
+ * the ends of the kept beams, in the scan's frame. Kept apart from the layer so that it can be
+ * exercised without GL or a view.
+ *
+ * Beams are decimated so that neighbouring points at the longest range in the scan land about
+ * {@link DecimatedLaserScanLayer#MIN_POINT_SPACING_PIXELS} apart, and a scan whose kept ranges
+ * all moved by less than a pixel keeps the vertices of the one before. Vertices go into one
+ * direct buffer, which is only replaced when a scan needs more room.
+ *
+ * Updates come from one thread only; the counters may be read from any.
+ */
+class LaserScanVertices {
+
+    private FloatBuffer vertices = newFloatBuffer(0);
+    private float[] keptRanges = new float[0];
+    private int vertexCount = 0;
+    private int lastStride = 0;
+    private double lastMetersPerPixel = 0;
+
+    private long builtCount = 0;
+    private long suppressedCount = 0;
+    private long allocationCount = 0;
+    private long buildNanos = 0;
+
+    /**
+     * Take in a scan.
+     *
+     * @param metersPerPixel at the current zoom, 0 if unknown yet
+     * @return false if the vertices of the previous scan were kept
+     */
+    boolean update(float[] ranges, float angleMin, float angleIncrement, float rangeMin,
+                   float rangeMax, double metersPerPixel) {
+        long start = System.nanoTime();
+        float increment = Math.abs(angleIncrement);
+        float longest = 0;
+        for (float range : ranges) {
+            if (range >= rangeMin && range <= rangeMax) {
+                longest = Math.max(longest, range);
+            }
+        }
+        int stride = 1;
+        if (metersPerPixel > 0 && increment > 0 && longest > 0) {
+            stride = Math.max(1, (int) (DecimatedLaserScanLayer.MIN_POINT_SPACING_PIXELS
+                    * metersPerPixel / (increment * longest)));
+        }
+        int kept = (ranges.length + stride - 1) / stride;
+        if (stride == lastStride && metersPerPixel == lastMetersPerPixel
+                && kept == keptRanges.length
+                && !movedByPixel(ranges, stride, (float) metersPerPixel)) {
+            synchronized (this) {
+                suppressedCount++;
+            }
+            return false;
+        }
+        if (vertices.capacity() < (kept + 1) * 2) {
+            vertices = newFloatBuffer((kept + 1) * 2);
+            synchronized (this) {
+                allocationCount++;
+            }
+        }
+        if (keptRanges.length != kept) {
+            keptRanges = new float[kept];
+        }
+        vertices.position(0);
+        vertices.put(0).put(0);
+        int count = 1;
+        float angle = angleMin;
+        float step = angleIncrement * stride;
+        for (int i = 0, k = 0; i < ranges.length; i += stride, k++, angle += step) {
+            float range = ranges[i];
+            keptRanges[k] = range;
+            // Also skips NaN, which compares false with everything.
+            if (!(range >= rangeMin && range <= rangeMax)) {
+                continue;
+            }
+            vertices.put((float) (range * Math.cos(angle))).put((float) (range * Math.sin(angle)));
+            count++;
+        }
+        vertexCount = count;
+        lastStride = stride;
+        lastMetersPerPixel = metersPerPixel;
+        synchronized (this) {
+            builtCount++;
+            buildNanos += System.nanoTime() - start;
+        }
+        return true;
+    }
+
+    /**
+     * @return x, y pairs, {@link #getVertexCount()} of them, positioned at 0
+     */
+    FloatBuffer getVertices() {
+        vertices.position(0);
+        return vertices;
+    }
+
+    int getVertexCount() {
+        return vertexCount;
+    }
+
+    synchronized long getBuiltCount() {
+        return builtCount;
+    }
+
+    synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    synchronized double getMeanBuildMicros() {
+        return builtCount == 0 ? 0 : buildNanos / 1000.0 / builtCount;
+    }
+
+    /**
+     * @return true if any kept range differs from the one drawn by at least a pixel
+     */
+    private boolean movedByPixel(float[] ranges, int stride, float metersPerPixel) {
+        for (int i = 0, k = 0; i < ranges.length; i += stride, k++) {
+            float range = ranges[i];
+            float drawn = keptRanges[k];
+            if (Float.isNaN(range) != Float.isNaN(drawn)
+                    || Math.abs(range - drawn) >= metersPerPixel) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static FloatBuffer newFloatBuffer(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.rosjava.android_apps.common;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import world_canvas_msgs.MapListEntry;
+
+/**
+ * Searchable index over the map store's entries.
+ *
+ * Display strings and lower-cased search keys are built once per entry, with one shared
+ * {@link DateFormat}, and kept across rebuilds as long as the entry's name and date do not
+ * change. Sorted views are cached until the next change, so a query is a single pass over
+ * precomputed strings, which stays interactive with tens of thousands of maps.
+ *
+ * Not thread safe.
+ */
+public class MapCatalogIndex {
+
+	public enum SortOrder {
+		/** As the ListMaps service returned them. */
+		SERVER, NEWEST_FIRST, OLDEST_FIRST, NAME
+	}
+
+	private static class Item {
+		MapListEntry entry;
+		final String name;
+		final long date;
+		final String displayString;
+		final String nameKey;
+		final String searchKey;
+
+		Item(MapListEntry entry, String displayString) {
+			this.entry = entry;
+			this.name = entry.getName() == null ? "" : entry.getName();
+			this.date = entry.getDate();
+			this.displayString = displayString;
+			this.nameKey = name.toLowerCase(Locale.getDefault());
+			this.searchKey = displayString.toLowerCase(Locale.getDefault()) + "\n"
+					+ entry.getMapId().toLowerCase(Locale.getDefault());
+		}
+
+		boolean isCurrent() {
+			return date == entry.getDate()
+					&& name.equals(entry.getName() == null ? "" : entry.getName());
+		}
+	}
+
+	private static final Comparator<Item> NEWEST_FIRST = new Comparator<Item>() {
+		@Override
+		public int compare(Item a, Item b) {
+			return a.date < b.date ? 1 : (a.date > b.date ? -1 : 0);
+		}
+	};
+
+	private static final Comparator<Item> BY_NAME = new Comparator<Item>() {
+		@Override
+		public int compare(Item a, Item b) {
+			int result = a.nameKey.compareTo(b.nameKey);
+			return result != 0 ? result : NEWEST_FIRST.compare(a, b);
+		}
+	};
+
+	private final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM,
+			DateFormat.SHORT);
+	private final Map<String, Item> items = new HashMap<String, Item>();
+	private final List<Item> inServerOrder = new ArrayList<Item>();
+	private final Map<SortOrder, Item[]> sorted = new HashMap<SortOrder, Item[]>();
+
+	/**
+	 * Index these entries, replacing the previous ones. Entries whose name and date did not
+	 * change keep their display strings.
+	 */
+	public void build(List<MapListEntry> entries) {
+		Map<String, Item> previous = new HashMap<String, Item>(items);
+		items.clear();
+		inServerOrder.clear();
+		for (MapListEntry entry : entries) {
+			Item item = previous.get(entry.getMapId());
+			if (item != null && item.date == entry.getDate()
+					&& item.name.equals(entry.getName() == null ? "" : entry.getName())) {
+				item.entry = entry;
+			} else {
+				item = newItem(entry);
+			}
+			items.put(entry.getMapId(), item);
+			inServerOrder.add(item);
+		}
+		sorted.clear();
+	}
+
+	/**
+	 * Re-index one entry after a local change, e.g. a rename.
+	 */
+	public void update(MapListEntry entry) {
+		Item old = items.get(entry.getMapId());
+		Item item = newItem(entry);
+		items.put(entry.getMapId(), item);
+		int position = old == null ? -1 : inServerOrder.indexOf(old);
+		if (position == -1) {
+			inServerOrder.add(item);
+		} else {
+			inServerOrder.set(position, item);
+		}
+		sorted.clear();
+	}
+
+	public void remove(String mapId) {
+		Item item = items.remove(mapId);
+		if (item != null) {
+			inServerOrder.remove(item);
+			sorted.clear();
+		}
+	}
+
+	public int size() {
+		return inServerOrder.size();
+	}
+
+	public MapListEntry get(String mapId) {
+		Item item = items.get(mapId);
+		return item == null ? null : item.entry;
+	}
+
+	/**
+	 * Precomputed "name date" string for a map, or null if it is not indexed.
+	 */
+	public String getDisplayString(String mapId) {
+		Item item = items.get(mapId);
+		if (item == null) {
+			return null;
+		}
+		if (!item.isCurrent()) {
+			update(item.entry);
+			item = items.get(mapId);
+		}
+		return item.displayString;
+	}
+
+	/**
+	 * All entries in the order the server listed them.
+	 */
+	public List<MapListEntry> getEntries() {
+		List<MapListEntry> result = new ArrayList<MapListEntry>(inServerOrder.size());
+		for (Item item : inServerOrder) {
+			result.add(item.entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Entries matching {@code query} in the given order. Maps whose name starts with the query
+	 * come first, then those containing it anywhere in their name, date or map id. An empty
+	 * query matches everything.
+	 */
+	public List<MapListEntry> query(String query, SortOrder order) {
+		Item[] candidates = sorted(order);
+		String needle = query == null ? "" : query.trim().toLowerCase(Locale.getDefault());
+		List<MapListEntry> prefixMatches = new ArrayList<MapListEntry>();
+		if (needle.length() == 0) {
+			for (Item item : candidates) {
+				prefixMatches.add(item.entry);
+			}
+			return prefixMatches;
+		}
+		List<MapListEntry> substringMatches = new ArrayList<MapListEntry>();
+		for (Item item : candidates) {
+			if (item.nameKey.startsWith(needle)) {
+				prefixMatches.add(item.entry);
+			} else if (item.searchKey.contains(needle)) {
+				substringMatches.add(item.entry);
+			}
+		}
+		prefixMatches.addAll(substringMatches);
+		return prefixMatches;
+	}
+
+	private Item[] sorted(SortOrder order) {
+		Item[] result = sorted.get(order);
+		if (result == null) {
+			result = inServerOrder.toArray(new Item[inServerOrder.size()]);
+			switch (order) {
+			case SERVER:
+				break;
+			case NEWEST_FIRST:
+				Arrays.sort(result, NEWEST_FIRST);
+				break;
+			case OLDEST_FIRST:
+				Arrays.sort(result, Collections.reverseOrder(NEWEST_FIRST));
+				break;
+			case NAME:
+				Arrays.sort(result, BY_NAME);
+				break;
+			}
+			sorted.put(order, result);
+		}
+		return result;
+	}
+
+	private Item newItem(MapListEntry entry) {
+		String name = entry.getName();
+		String dateTime = dateFormat.format(new Date(entry.getDate() * 1000));
+		String displayString;
+		if (name != null && !name.equals("")) {
+			displayString = name + " " + dateTime;
+		} else {
+			displayString = dateTime;
+		}
+		return new Item(entry, displayString);
+	}
+}
@@ -0,0 +1,328 @@
+package com.github.rosjava.android_apps.common;
+
+import android.util.Log;
+
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeMain;
+import org.ros.node.topic.Subscriber;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs several {@link NodeMain}s on one shared {@link ConnectedNode}, so an app registers a
+ * single node with the master instead of one per widget or per service call.
+ *
+ * Node mains added with {@link #addNodeMain(NodeMain)} share the node's whole lifecycle.
+ * One-shot ones, like a service call wrapped in a NodeMain, go through
+ * {@link #executeOnce(NodeMain)} and are to be handed to {@link #removeNodeMain(NodeMain)}
+ * once done, which shuts them down. Either can be handed over before or after the node is up.
+ *
+ * A node keeps one publisher, subscriber, service client or server per name, and hands the
+ * same one to every caller asking for that name; shutting it down would pull it from under
+ * every other node main using that name. Node mains therefore get a view of the node that
+ * counts how many of them asked for each of these, and only really shuts one down when the
+ * last of them does. Message listeners a node main added through its view of a subscriber are
+ * removed when it shuts that view down, whether or not others still use the subscriber. Views
+ * are only equal to themselves. The whole node, and everything on it, goes when the host shuts
+ * down; node mains see their view of the node in every callback, that one included.
+ */
+public class NodeMainHost extends AbstractNodeMain {
+
+    private static final String TAG = "NodeMainHost";
+
+    private final GraphName nodeName;
+    private final List<NodeMain> nodeMains = new ArrayList<NodeMain>();
+    private final List<NodeMain> pendingOnce = new ArrayList<NodeMain>();
+    private final Map<Object, Integer> holders = new IdentityHashMap<Object, Integer>();
+    private final long createdNanos = System.nanoTime();
+    private ConnectedNode connectedNode;
+    private ConnectedNode sharedNode;
+    private long connectNanos = -1;
+    private long startNanos = 0;
+    private int startedCount = 0;
+
+    public NodeMainHost(String nodeName) {
+        this.nodeName = GraphName.of(nodeName);
+    }
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return nodeName;
+    }
+
+    public void addNodeMain(NodeMain nodeMain) {
+        ConnectedNode node;
+        synchronized (this) {
+            nodeMains.add(nodeMain);
+            node = sharedNode;
+        }
+        if (node != null) {
+            startLater(node, nodeMain);
+        }
+    }
+
+    public void executeOnce(NodeMain nodeMain) {
+        ConnectedNode node;
+        synchronized (this) {
+            node = sharedNode;
+            if (node == null) {
+                pendingOnce.add(nodeMain);
+            } else {
+                nodeMains.add(nodeMain);
+            }
+        }
+        if (node != null) {
+            startLater(node, nodeMain);
+        }
+    }
+
+    /**
+     * Shut a node main down and forget it; the shared node keeps running. Does nothing for a
+     * node main this host does not know.
+     */
+    public void removeNodeMain(NodeMain nodeMain) {
+        ConnectedNode node;
+        synchronized (this) {
+            boolean running = nodeMains.remove(nodeMain);
+            pendingOnce.remove(nodeMain);
+            node = running ? sharedNode : null;
+        }
+        if (node != null) {
+            nodeMain.onShutdown(node);
+            nodeMain.onShutdownComplete(node);
+        }
+    }
+
+    /**
+     * Milliseconds from creating the host until the node was registered and up, -1 before;
+     * this is the cost shared by all node mains.
+     */
+    public synchronized long getConnectMillis() {
+        return connectNanos < 0 ? -1 : connectNanos / 1000000;
+    }
+
+    /**
+     * Milliseconds spent in the onStart of the node mains started so far, and their number.
+     */
+    public synchronized long getStartMillis() {
+        return startNanos / 1000000;
+    }
+
+    public synchronized int getStartedCount() {
+        return startedCount;
+    }
+
+    /**
+     * @return node mains currently on the node, one-shot ones included
+     */
+    public synchronized int getNodeMainCount() {
+        return nodeMains.size() + pendingOnce.size();
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        List<NodeMain> toStart;
+        ConnectedNode node;
+        synchronized (this) {
+            connectNanos = System.nanoTime() - createdNanos;
+            this.connectedNode = connectedNode;
+            sharedNode = newSharedNode(connectedNode);
+            node = sharedNode;
+            nodeMains.addAll(pendingOnce);
+            pendingOnce.clear();
+            toStart = new ArrayList<NodeMain>(nodeMains);
+        }
+        for (NodeMain nodeMain : toStart) {
+            start(node, nodeMain);
+        }
+        Log.i(TAG, nodeName + " up in " + getConnectMillis() + " ms, started "
+                + getStartedCount() + " node mains in " + getStartMillis() + " ms");
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        Node shared = viewOf(node);
+        for (NodeMain nodeMain : snapshot()) {
+            nodeMain.onShutdown(shared);
+        }
+    }
+
+    @Override
+    public void onShutdownComplete(Node node) {
+        Node shared = viewOf(node);
+        for (NodeMain nodeMain : snapshot()) {
+            nodeMain.onShutdownComplete(shared);
+        }
+        synchronized (this) {
+            connectedNode = null;
+            sharedNode = null;
+            holders.clear();
+        }
+    }
+
+    @Override
+    public void onError(Node node, Throwable throwable) {
+        Node shared = viewOf(node);
+        for (NodeMain nodeMain : snapshot()) {
+            nodeMain.onError(shared, throwable);
+        }
+    }
+
+    private synchronized List<NodeMain> snapshot() {
+        return new ArrayList<NodeMain>(nodeMains);
+    }
+
+    /**
+     * @return what node mains got in onStart, or the node itself if it never got that far
+     */
+    private synchronized Node viewOf(Node node) {
+        return sharedNode != null && node == connectedNode ? sharedNode : node;
+    }
+
+    private void startLater(final ConnectedNode node, final NodeMain nodeMain) {
+        node.getScheduledExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NodeMainHost.this) {
+                    if (!nodeMains.contains(nodeMain)) {
+                        // Removed before it got to start.
+                        return;
+                    }
+                }
+                start(node, nodeMain);
+            }
+        });
+    }
+
+    private void start(ConnectedNode node, NodeMain nodeMain) {
+        long start = System.nanoTime();
+        try {
+            nodeMain.onStart(node);
+        } catch (RuntimeException e) {
+            // One misbehaving widget must not take the others down with the shared node.
+            Log.e(TAG, "Failed to start " + nodeMain, e);
+            nodeMain.onError(node, e);
+        }
+        synchronized (this) {
+            startNanos += System.nanoTime() - start;
+            startedCount++;
+        }
+    }
+
+    /**
+     * @return the node as node mains see it: participants they get from it are counted
+     */
+    private ConnectedNode newSharedNode(final ConnectedNode node) {
+        return (ConnectedNode) Proxy.newProxyInstance(ConnectedNode.class.getClassLoader(),
+                new Class<?>[] { ConnectedNode.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        Object result = forward(node, method, args);
+                        String name = method.getName();
+                        if (result != null && (name.equals("newPublisher")
+                                || name.equals("newSubscriber")
+                                || name.equals("newServiceClient")
+                                || name.equals("newServiceServer"))) {
+                            return hold(result, method.getReturnType());
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * @return a view of the participant whose shutdown only lets go of this holder's share
+     */
+    private Object hold(final Object participant, Class<?> type) {
+        synchronized (this) {
+            Integer count = holders.get(participant);
+            holders.put(participant, count == null ? 1 : count + 1);
+        }
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    private final List<MessageListener<?>> listeners =
+                            new ArrayList<MessageListener<?>>();
+                    private boolean released = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("equals") && args != null && args.length == 1) {
+                            return proxy == args[0];
+                        } else if (name.equals("hashCode") && args == null) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("shutdown")) {
+                            if (!release()) {
+                                return null;
+                            }
+                        } else if (name.equals("addMessageListener")) {
+                            synchronized (this) {
+                                listeners.add((MessageListener<?>) args[0]);
+                            }
+                        } else if (name.equals("removeMessageListener")) {
+                            synchronized (this) {
+                                listeners.remove(args[0]);
+                            }
+                        } else if (name.equals("removeAllMessageListeners")) {
+                            // Only this holder's listeners; the others still want their messages.
+                            removeListeners();
+                            return null;
+                        }
+                        return forward(participant, method, args);
+                    }
+
+                    private boolean release() {
+                        synchronized (NodeMainHost.this) {
+                            if (released) {
+                                return false;
+                            }
+                            released = true;
+                        }
+                        removeListeners();
+                        synchronized (NodeMainHost.this) {
+                            Integer count = holders.get(participant);
+                            if (count != null && count > 1) {
+                                holders.put(participant, count - 1);
+                                return false;
+                            }
+                            holders.remove(participant);
+                            return true;
+                        }
+                    }
+
+                    @SuppressWarnings({ "rawtypes", "unchecked" })
+                    private void removeListeners() {
+                        List<MessageListener<?>> added;
+                        synchronized (this) {
+                            added = new ArrayList<MessageListener<?>>(listeners);
+                            listeners.clear();
+                        }
+                        for (MessageListener listener : added) {
+                            ((Subscriber) participant).removeMessageListener(listener);
+                        }
+                    }
+                });
+    }
+
+    private static Object forward(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.rosjava.android_apps.common;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.android.MessageCallable;
+
+/**
+ * Drop-in replacement for {@link org.ros.android.BitmapFromCompressedImage} that decodes
+ * every frame into a small ring of reusable bitmaps instead of allocating a new one.
+ *
+ * The ring must be larger than the number of frames alive at the same time: the one on
+ * screen, plus the one being decoded. Bitmaps are handed out oldest first, so by the time
+ * a slot comes around again the view has already swapped it out.
+ *
+ * When given a target size, frames are decoded with the largest power-of-two subsampling
+ * that still covers it, so a thumbnail pane does not pay for a full-resolution decode.
+ *
+ * Nothing in the build checks the reuse: decoding needs the platform BitmapFactory, which
+ * only exists on a device. Watch {@link #getAllocationsPerFrame()} there instead.
+ */
+public class PooledBitmapFromCompressedImage implements MessageCallable<Bitmap, sensor_msgs.CompressedImage> {
+
+    private static final int DEFAULT_POOL_SIZE = 3;
+
+    private final Bitmap[] pool;
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    private int next = 0;
+    private int targetWidth = 0;
+    private int targetHeight = 0;
+
+    private long frameCount = 0;
+    private long allocationCount = 0;
+
+    public PooledBitmapFromCompressedImage() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    public PooledBitmapFromCompressedImage(int poolSize) {
+        pool = new Bitmap[Math.max(2, poolSize)];
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Set the size of the view the frames end up in. Zero in either dimension disables
+     * subsampling.
+     */
+    public synchronized void setTargetSize(int width, int height) {
+        targetWidth = width;
+        targetHeight = height;
+    }
+
+    @Override
+    public synchronized Bitmap call(sensor_msgs.CompressedImage message) {
+        ChannelBuffer buffer = message.getData();
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.readerIndex();
+        int length = buffer.readableBytes();
+
+        // Read the header only, so we know which pooled bitmap can take this frame.
+        options.inJustDecodeBounds = true;
+        options.inSampleSize = 1;
+        options.inBitmap = null;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        options.inJustDecodeBounds = false;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        frameCount++;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        Bitmap candidate = pool[next];
+        if (canReuse(candidate)) {
+            options.inBitmap = candidate;
+            try {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+                if (bitmap == candidate) {
+                    next = (next + 1) % pool.length;
+                    return bitmap;
+                }
+            } catch (IllegalArgumentException e) {
+                // The decoder refused to reuse the bitmap; fall through and allocate.
+            } finally {
+                options.inBitmap = null;
+            }
+        }
+
+        // Frame or target size changed (or the first frames came in): replace the slot.
+        if (candidate != null) {
+            candidate.recycle();
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        allocationCount++;
+        pool[next] = bitmap;
+        next = (next + 1) % pool.length;
+        return bitmap;
+    }
+
+    private int sampleSize(int width, int height) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return 1;
+        }
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private boolean canReuse(Bitmap candidate) {
+        if (candidate == null || candidate.isRecycled()
+                || candidate.getConfig() != options.inPreferredConfig) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return canReuseKitKat(candidate);
+        }
+        // Before KitKat the decoder only reuses same-sized bitmaps, without subsampling.
+        return options.inSampleSize == 1
+                && candidate.getWidth() == options.outWidth
+                && candidate.getHeight() == options.outHeight;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private boolean canReuseKitKat(Bitmap candidate) {
+        int sampleSize = options.inSampleSize;
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        return candidate.getAllocationByteCount() >= width * height * 4;
+    }
+
+    /**
+     * @return number of frames decoded so far
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return number of frames that needed a freshly allocated bitmap. In steady state this
+     * stops growing once every slot of the pool is filled.
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return allocations per decoded frame, 0 when the pool is fully warmed up
+     */
+    public synchronized double getAllocationsPerFrame() {
+        return frameCount == 0 ? 0 : (double) allocationCount / frameCount;
+    }
+}
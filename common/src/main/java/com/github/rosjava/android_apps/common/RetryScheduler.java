@@ -0,0 +1,197 @@
+package com.github.rosjava.android_apps.common;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.ros.exception.ServiceNotFoundException;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries service calls whose service is not advertised yet, e.g. while the world_canvas
+ * server is still starting, without blocking a thread in between.
+ *
+ * Each attempt runs on the node's {@link ScheduledExecutorService}. When an attempt fails with
+ * a {@link ServiceNotFoundException} the next one is scheduled after an exponentially growing,
+ * jittered delay, up to a maximum number of attempts; any other failure is final. Cancelling
+ * the returned future stops further attempts.
+ */
+public class RetryScheduler {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 250;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 8000;
+
+    private final ScheduledExecutorService executorService;
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+    private final long createdNanos = System.nanoTime();
+
+    private long attemptCount = 0;
+    private long successCount = 0;
+    private long giveUpCount = 0;
+    private long totalSuccessNanos = 0;
+    private long firstSuccessNanos = -1;
+
+    public RetryScheduler(ScheduledExecutorService executorService) {
+        this(executorService, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public RetryScheduler(ScheduledExecutorService executorService, int maxAttempts,
+                          long initialDelayMillis, long maxDelayMillis) {
+        this.executorService = executorService;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Run {@code call} until it succeeds, fails for good or runs out of attempts. The call may
+     * throw {@link ServiceNotFoundException} or return a future failing with it to ask for a
+     * retry.
+     */
+    public <T> ListenableFuture<T> submit(Callable<ListenableFuture<T>> call) {
+        Retry<T> retry = new Retry<T>(call);
+        executorService.execute(retry);
+        return retry.result;
+    }
+
+    public synchronized long getAttemptCount() {
+        return attemptCount;
+    }
+
+    public synchronized long getSuccessCount() {
+        return successCount;
+    }
+
+    public synchronized long getGiveUpCount() {
+        return giveUpCount;
+    }
+
+    /**
+     * Mean time from submitting a call to its success, retries included; -1 before any success.
+     */
+    public synchronized long getMeanTimeToSuccessMillis() {
+        return successCount == 0 ? -1 : totalSuccessNanos / successCount / 1000000;
+    }
+
+    /**
+     * Time from creating the scheduler to the first successful call, i.e. how long the server
+     * took to become reachable; -1 before any success.
+     */
+    public synchronized long getTimeToFirstSuccessMillis() {
+        return firstSuccessNanos < 0 ? -1 : (firstSuccessNanos - createdNanos) / 1000000;
+    }
+
+    private synchronized void recordAttempt() {
+        attemptCount++;
+    }
+
+    private synchronized void recordSuccess(long submittedNanos) {
+        long now = System.nanoTime();
+        successCount++;
+        totalSuccessNanos += now - submittedNanos;
+        if (firstSuccessNanos < 0) {
+            firstSuccessNanos = now;
+        }
+    }
+
+    private synchronized void recordGiveUp() {
+        giveUpCount++;
+    }
+
+    /**
+     * Delay before attempt {@code attempt + 1}: half of the exponential backoff is fixed and
+     * the other half random, so clients started together do not retry in lockstep.
+     */
+    private long delayMillis(int attempt) {
+        long backoff = initialDelayMillis << Math.min(attempt - 1, 20);
+        backoff = Math.min(backoff, maxDelayMillis);
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    private static boolean isRetryable(Throwable t) {
+        return t instanceof ServiceNotFoundException
+                || t.getCause() instanceof ServiceNotFoundException;
+    }
+
+    private class Retry<T> implements Runnable {
+        private final Callable<ListenableFuture<T>> call;
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final long submittedNanos = System.nanoTime();
+        private int attempt = 0;
+        private ScheduledFuture<?> pending;
+
+        Retry(Callable<ListenableFuture<T>> call) {
+            this.call = call;
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isCancelled()) {
+                        cancelPending();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+            attempt++;
+            recordAttempt();
+            ListenableFuture<T> future;
+            try {
+                future = call.call();
+            } catch (Exception e) {
+                retryOrFail(e);
+                return;
+            }
+            Futures.addCallback(future, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    if (result.set(value)) {
+                        recordSuccess(submittedNanos);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    retryOrFail(t);
+                }
+            });
+        }
+
+        private synchronized void cancelPending() {
+            if (pending != null) {
+                pending.cancel(false);
+            }
+        }
+
+        private void retryOrFail(Throwable t) {
+            if (result.isDone()) {
+                return;
+            }
+            if (!isRetryable(t) || attempt >= maxAttempts) {
+                if (result.setException(t)) {
+                    recordGiveUp();
+                }
+                return;
+            }
+            synchronized (this) {
+                pending = executorService.schedule(this, delayMillis(attempt), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package com.github.rosjava.android_apps.common;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.android.view.visualization.OpenGlTransform;
+import org.ros.android.view.visualization.VisualizationView;
+import org.ros.android.view.visualization.XYOrthographicCamera;
+import org.ros.namespace.GraphName;
+import org.ros.rosjava_geometry.FrameTransform;
+import org.ros.rosjava_geometry.Transform;
+import org.ros.rosjava_geometry.Vector3;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nav_msgs.OccupancyGrid;
+
+/**
+ * An occupancy grid kept as a pyramid of levels, drawn through {@link GridTile}s converted only
+ * where and when the camera needs them.
+ *
+ * Level 0 is a copy of the cells of the last grid; every further level halves the previous
+ * one, a cell taking the highest value of the four below it so that obstacles survive and
+ * unknown space only shows where nothing is known. Levels are added until one tile holds the
+ * whole level. The cells stay single bytes, a third more than the grid itself.
+ *
+ * Each frame draws the coarsest level whose cells still cover no more than a pixel, and of it
+ * only the tiles inside the viewport. Tiles are converted by the {@link GridConverter} when
+ * first needed or after their cells changed, at most {@link #MAX_CONVERSIONS_PER_FRAME} per
+ * frame, and the ones that went unseen the longest are dropped once more than
+ * {@link #MAX_RESIDENT_TILES} exist, their pixel buffers going to the next tiles. Pixel memory
+ * is thus bound by the screen size rather than the map size, and cut to a quarter by keeping
+ * tiles paletted, one byte per cell, where the driver allows.
+ *
+ * When a full grid arrives with the same geometry its rows are compared tile by tile against
+ * the copy and only the changed areas are carried up the pyramid; a grid with a new size,
+ * resolution or origin is rebuilt from scratch. Partial updates, in the manner of
+ * map_msgs/OccupancyGridUpdate, patch a rectangle of cells.
+ *
+ * Updates may come from any thread; drawing happens on the GL thread.
+ */
+public class TiledGrid {
+
+    /** 16 MB of pixels, more than a full screen of tiles at any zoom. */
+    public static final int MAX_RESIDENT_TILES = 64;
+    public static final int MAX_CONVERSIONS_PER_FRAME = 8;
+
+    private final int[] colors;
+    private final boolean downsampling;
+    private boolean paletted;
+    private final Map<Long, GridTile> tiles = new HashMap<Long, GridTile>();
+    private final List<GridTile> releasedTiles = new ArrayList<GridTile>();
+    private final List<ByteBuffer> freeBuffers = new ArrayList<ByteBuffer>();
+
+    private GraphName frame;
+    private Transform origin;
+    private float resolution;
+    private int width;
+    private int height;
+    private List<GridLevel> levels = new ArrayList<GridLevel>();
+    private byte[] rowScratch = new byte[GridTile.SIZE];
+    private long frameCount = 0;
+
+    private long updateCount = 0;
+    private long convertedTileCount = 0;
+
+    private static class GridLevel {
+        final int width;
+        final int height;
+        final byte[] cells;
+
+        GridLevel(int width, int height) {
+            this.width = width;
+            this.height = height;
+            cells = new byte[width * height];
+        }
+    }
+
+    public TiledGrid(int[] colors) {
+        this(colors, true);
+    }
+
+    /**
+     * @param downsampling false to always draw full resolution cells and not keep the coarser
+     *     levels, for small grids that change every message, and for cells that are not plain
+     *     occupancy or cost values, whose highest signed value means nothing
+     */
+    public TiledGrid(int[] colors, boolean downsampling) {
+        this(colors, downsampling, true);
+    }
+
+    /**
+     * @param paletted whether to keep tiles as 8-bit palette indices rather than RGBA pixels;
+     *     ignored where the driver has turned paletted textures down
+     */
+    public TiledGrid(int[] colors, boolean downsampling, boolean paletted) {
+        this.colors = colors;
+        this.downsampling = downsampling;
+        this.paletted = paletted && GridTile.isPalettedSupported();
+    }
+
+    public synchronized GraphName getFrame() {
+        return frame;
+    }
+
+    /**
+     * Take in a full grid message.
+     */
+    public synchronized void update(OccupancyGrid grid) {
+        update(GraphName.of(grid.getHeader().getFrameId()),
+                Transform.fromPoseMessage(grid.getInfo().getOrigin()),
+                grid.getInfo().getResolution(), grid.getInfo().getWidth(),
+                grid.getInfo().getHeight(), grid.getData());
+    }
+
+    /**
+     * Take in a full grid given by its parts, e.g. one composed from several messages.
+     *
+     * @param data {@code newWidth * newHeight} cells, row-major
+     */
+    public synchronized void update(GraphName newFrame, Transform newOrigin, float newResolution,
+                                    int newWidth, int newHeight, ChannelBuffer data) {
+        updateCount++;
+        frame = newFrame;
+        if (newWidth != width || newHeight != height || newResolution != resolution
+                || origin == null || !newOrigin.almostEquals(origin, 1e-6)) {
+            rebuild(newWidth, newHeight, newResolution, newOrigin, data);
+            return;
+        }
+        int offset = data.readerIndex();
+        for (int y = 0; y < height; y += GridTile.SIZE) {
+            for (int x = 0; x < width; x += GridTile.SIZE) {
+                int tileWidth = Math.min(GridTile.SIZE, width - x);
+                int tileHeight = Math.min(GridTile.SIZE, height - y);
+                if (copyChangedRows(data, offset, x, y, tileWidth, tileHeight)) {
+                    cellsChanged(x, y, x + tileWidth, y + tileHeight);
+                }
+            }
+        }
+    }
+
+    /**
+     * Patch the cells of a rectangle, e.g. from a map_msgs/OccupancyGridUpdate. The update is
+     * ignored if it does not fit the current grid.
+     *
+     * @param data {@code updateWidth * updateHeight} cells, row-major
+     */
+    public synchronized void update(int x, int y, int updateWidth, int updateHeight,
+                                    ChannelBuffer data) {
+        if (levels.isEmpty() || x < 0 || y < 0 || x + updateWidth > width
+                || y + updateHeight > height) {
+            return;
+        }
+        updateCount++;
+        byte[] cells = levels.get(0).cells;
+        int offset = data.readerIndex();
+        for (int row = 0; row < updateHeight; row++) {
+            data.getBytes(offset + row * updateWidth, cells, (y + row) * width + x, updateWidth);
+        }
+        cellsChanged(x, y, x + updateWidth, y + updateHeight);
+    }
+
+    /**
+     * Drop the grid and its tiles; nothing is drawn until the next full update.
+     */
+    public synchronized void clear() {
+        releasedTiles.addAll(tiles.values());
+        tiles.clear();
+        levels = new ArrayList<GridLevel>();
+        frame = null;
+        origin = null;
+        width = 0;
+        height = 0;
+    }
+
+    /**
+     * Number of updates taken in and of tiles converted for them, to check how much work the
+     * diffing and culling save.
+     */
+    public synchronized long getUpdateCount() {
+        return updateCount;
+    }
+
+    public synchronized long getConvertedTileCount() {
+        return convertedTileCount;
+    }
+
+    /**
+     * Bytes held for the grid: cells of all levels plus the pixel buffers of the tiles,
+     * resident, waiting for their texture to be freed or waiting for reuse.
+     */
+    public synchronized long getMemoryBytes() {
+        return getCellBytes() + (long) (tiles.size() + releasedTiles.size() + freeBuffers.size())
+                * GridTile.getBufferBytes(paletted);
+    }
+
+    /**
+     * Bytes of the cells of all levels.
+     */
+    synchronized long getCellBytes() {
+        long bytes = 0;
+        for (GridLevel level : levels) {
+            bytes += level.cells.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes handed to GL for the textures of the resident tiles that have one: palette and
+     * indices for paletted tiles, RGBA pixels otherwise. A driver without native paletted
+     * textures expands them to RGBA in video memory, which this does not show.
+     */
+    public synchronized long getTextureBytes() {
+        long bytes = 0;
+        for (GridTile tile : tiles.values()) {
+            bytes += tile.getTextureBytes();
+        }
+        return bytes;
+    }
+
+    public synchronized boolean isPaletted() {
+        return paletted;
+    }
+
+    public synchronized int getResidentTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * Draw the part of the grid in view, in the grid's frame. GL thread only.
+     */
+    public void draw(VisualizationView view, GL10 gl) {
+        List<GridTile> visible = new ArrayList<GridTile>();
+        Transform originToDraw;
+        float cellSize;
+        synchronized (this) {
+            if (paletted && !GridTile.isPalettedSupported()) {
+                // Start over in RGBA; the paletted buffers are the wrong size for it.
+                paletted = false;
+                releasedTiles.addAll(tiles.values());
+                tiles.clear();
+                freeBuffers.clear();
+            }
+            for (GridTile tile : releasedTiles) {
+                recycle(tile.release(gl));
+            }
+            releasedTiles.clear();
+            if (levels.isEmpty()) {
+                return;
+            }
+            originToDraw = origin;
+            int[] bounds = new int[] { 0, 0, width, height };
+            cellSize = selectTiles(bounds, viewedArea(view, bounds), visible);
+        }
+        gl.glPushMatrix();
+        OpenGlTransform.apply(gl, originToDraw);
+        gl.glEnable(GL10.GL_TEXTURE_2D);
+        gl.glEnable(GL10.GL_BLEND);
+        gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+        gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+        gl.glColor4f(1, 1, 1, 1);
+        for (GridTile tile : visible) {
+            tile.draw(gl, cellSize);
+        }
+        gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+        gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, 0);
+        gl.glDisable(GL10.GL_TEXTURE_2D);
+        gl.glPopMatrix();
+    }
+
+    /**
+     * Pick the level to draw at a scale and gather its tiles inside the bounds, converting
+     * them as needed and evicting the ones unseen the longest. Needs no GL: evicted tiles that
+     * have a texture are released at the start of the next draw.
+     *
+     * @param bounds level-0 cells in view, as {minX, minY, maxX, maxY}
+     * @param metersPerPixel 0 when the view cannot be placed against the grid yet
+     * @return size of a cell of the chosen level, in meters
+     */
+    synchronized float selectTiles(int[] bounds, double metersPerPixel, List<GridTile> visible) {
+        if (levels.isEmpty()) {
+            return 0;
+        }
+        frameCount++;
+        int level = 0;
+        if (metersPerPixel == 0 && downsampling) {
+            // Not placed yet: the coarsest level is a single tile.
+            level = levels.size() - 1;
+        }
+        while (level + 1 < levels.size() && resolution * (2 << level) <= metersPerPixel) {
+            level++;
+        }
+        collectTiles(level, bounds, visible);
+        evictTiles();
+        return resolution * (1 << level);
+    }
+
+    /**
+     * Work out which level-0 cells are on screen by taking the view corners into grid
+     * coordinates.
+     *
+     * @param bounds the whole grid as {minX, minY, maxX, maxY}, narrowed to the cells in view
+     * @return meters per screen pixel, 0 when the view cannot be placed against the grid yet
+     */
+    private double viewedArea(VisualizationView view, int[] bounds) {
+        XYOrthographicCamera camera = view.getCamera();
+        int viewWidth = view.getWidth();
+        int viewHeight = view.getHeight();
+        if (viewWidth == 0 || viewHeight == 0 || camera.getFrame() == null) {
+            return 0;
+        }
+        FrameTransform frameTransform = view.getFrameTransformTree().transform(
+                camera.getFrame(), frame);
+        if (frameTransform == null) {
+            return 0;
+        }
+        Transform toGrid = origin.invert().multiply(frameTransform.getTransform());
+        int[][] corners = { { 0, 0 }, { viewWidth, 0 }, { 0, viewHeight },
+                { viewWidth, viewHeight } };
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        Vector3[] points = new Vector3[corners.length];
+        for (int i = 0; i < corners.length; i++) {
+            points[i] = toGrid.apply(camera.toCameraFrame(corners[i][0], corners[i][1]));
+            minX = Math.min(minX, points[i].getX());
+            minY = Math.min(minY, points[i].getY());
+            maxX = Math.max(maxX, points[i].getX());
+            maxY = Math.max(maxY, points[i].getY());
+        }
+        bounds[0] = (int) Math.max(0, Math.floor(minX / resolution));
+        bounds[1] = (int) Math.max(0, Math.floor(minY / resolution));
+        bounds[2] = (int) Math.min(width, Math.ceil(maxX / resolution));
+        bounds[3] = (int) Math.min(height, Math.ceil(maxY / resolution));
+        return points[1].subtract(points[0]).getMagnitude() / viewWidth;
+    }
+
+    /**
+     * Gather the tiles of a level that overlap the bounds, creating and converting them as
+     * needed.
+     */
+    private void collectTiles(int level, int[] bounds, List<GridTile> visible) {
+        if (bounds[2] <= bounds[0] || bounds[3] <= bounds[1]) {
+            return;
+        }
+        GridLevel cells = levels.get(level);
+        int tileCells = GridTile.SIZE << level;
+        int firstColumn = bounds[0] / tileCells;
+        int firstRow = bounds[1] / tileCells;
+        int lastColumn = (bounds[2] - 1) / tileCells;
+        int lastRow = (bounds[3] - 1) / tileCells;
+        List<GridTile> toConvert = new ArrayList<GridTile>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                long key = tileKey(level, column, row);
+                GridTile tile = tiles.get(key);
+                if (tile == null || tile.isStale()) {
+                    if (toConvert.size() == MAX_CONVERSIONS_PER_FRAME) {
+                        // Left for the next frames; old pixels, if any, stand in until then.
+                        if (tile != null) {
+                            tile.setLastUsedFrame(frameCount);
+                            visible.add(tile);
+                        }
+                        continue;
+                    }
+                    if (tile == null) {
+                        int x = column * GridTile.SIZE;
+                        int y = row * GridTile.SIZE;
+                        tile = new GridTile(level, x, y, Math.min(GridTile.SIZE, cells.width - x),
+                                Math.min(GridTile.SIZE, cells.height - y), paletted,
+                                takeBuffer());
+                        tiles.put(key, tile);
+                    }
+                    toConvert.add(tile);
+                }
+                tile.setLastUsedFrame(frameCount);
+                visible.add(tile);
+            }
+        }
+        GridConverter.convert(toConvert, cells.cells, cells.width, colors);
+        convertedTileCount += toConvert.size();
+    }
+
+    private void evictTiles() {
+        while (tiles.size() > MAX_RESIDENT_TILES) {
+            Map.Entry<Long, GridTile> oldest = null;
+            for (Map.Entry<Long, GridTile> entry : tiles.entrySet()) {
+                if (oldest == null
+                        || entry.getValue().getLastUsedFrame() < oldest.getValue().getLastUsedFrame()) {
+                    oldest = entry;
+                }
+            }
+            if (oldest.getValue().getLastUsedFrame() == frameCount) {
+                // Everything left is in view.
+                return;
+            }
+            GridTile tile = tiles.remove(oldest.getKey());
+            if (tile.hasTexture()) {
+                releasedTiles.add(tile);
+            } else {
+                recycle(tile.getBuffer());
+            }
+        }
+    }
+
+    private ByteBuffer takeBuffer() {
+        if (freeBuffers.isEmpty()) {
+            return ByteBuffer.allocateDirect(GridTile.getBufferBytes(paletted));
+        }
+        return freeBuffers.remove(freeBuffers.size() - 1);
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() == GridTile.getBufferBytes(paletted)) {
+            buffer.clear();
+            freeBuffers.add(buffer);
+        }
+    }
+
+    private static long tileKey(int level, int column, int row) {
+        return ((long) level << 48) | ((long) row << 24) | column;
+    }
+
+    private void rebuild(int newWidth, int newHeight, float newResolution, Transform newOrigin,
+                         ChannelBuffer data) {
+        releasedTiles.addAll(tiles.values());
+        tiles.clear();
+        width = newWidth;
+        height = newHeight;
+        resolution = newResolution;
+        origin = newOrigin;
+        levels = new ArrayList<GridLevel>();
+        GridLevel base = new GridLevel(width, height);
+        data.getBytes(data.readerIndex(), base.cells, 0, base.cells.length);
+        levels.add(base);
+        GridLevel previous = base;
+        while (downsampling
+                && (previous.width > GridTile.SIZE || previous.height > GridTile.SIZE)) {
+            GridLevel next = new GridLevel((previous.width + 1) / 2, (previous.height + 1) / 2);
+            downsample(previous, next, 0, 0, next.width, next.height);
+            levels.add(next);
+            previous = next;
+        }
+    }
+
+    /**
+     * Carry a changed rectangle of level 0 up the pyramid and mark the tiles over it stale.
+     */
+    private void cellsChanged(int minX, int minY, int maxX, int maxY) {
+        int levelMinX = minX;
+        int levelMinY = minY;
+        int levelMaxX = maxX;
+        int levelMaxY = maxY;
+        for (int level = 1; level < levels.size(); level++) {
+            levelMinX /= 2;
+            levelMinY /= 2;
+            levelMaxX = (levelMaxX + 1) / 2;
+            levelMaxY = (levelMaxY + 1) / 2;
+            downsample(levels.get(level - 1), levels.get(level), levelMinX, levelMinY, levelMaxX,
+                    levelMaxY);
+        }
+        for (GridTile tile : tiles.values()) {
+            int scale = 1 << tile.getLevel();
+            int x = tile.getX() * scale;
+            int y = tile.getY() * scale;
+            int extent = GridTile.SIZE * scale;
+            if (x < maxX && minX < x + extent && y < maxY && minY < y + extent) {
+                tile.markStale();
+            }
+        }
+    }
+
+    /**
+     * Compute the cells of {@code to} in the rectangle from the cells of {@code from} below.
+     */
+    private static void downsample(GridLevel from, GridLevel to, int minX, int minY, int maxX,
+                                   int maxY) {
+        for (int y = minY; y < maxY; y++) {
+            int y0 = 2 * y;
+            int y1 = Math.min(y0 + 1, from.height - 1);
+            for (int x = minX; x < maxX; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, from.width - 1);
+                byte value = from.cells[y0 * from.width + x0];
+                value = (byte) Math.max(value, from.cells[y0 * from.width + x1]);
+                value = (byte) Math.max(value, from.cells[y1 * from.width + x0]);
+                value = (byte) Math.max(value, from.cells[y1 * from.width + x1]);
+                to.cells[y * to.width + x] = value;
+            }
+        }
+    }
+
+    /**
+     * Copy the rows of a tile-sized rectangle from {@code data} into level 0 where they differ.
+     *
+     * @return true if any cell of the rectangle changed
+     */
+    private boolean copyChangedRows(ChannelBuffer data, int offset, int x, int y, int tileWidth,
+                                    int tileHeight) {
+        byte[] cells = levels.get(0).cells;
+        boolean changed = false;
+        for (int row = y; row < y + tileHeight; row++) {
+            int start = row * width + x;
+            data.getBytes(offset + start, rowScratch, 0, tileWidth);
+            for (int i = 0; i < tileWidth; i++) {
+                if (rowScratch[i] != cells[start + i]) {
+                    System.arraycopy(rowScratch, i, cells, start + i, tileWidth - i);
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.rosjava.android_apps.common;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.android.view.visualization.VisualizationView;
+import org.ros.android.view.visualization.layer.SubscriberLayer;
+import org.ros.android.view.visualization.layer.TfLayer;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import nav_msgs.OccupancyGrid;
+
+/**
+ * Draws an occupancy grid topic through a {@link TiledGrid}, so a new grid only costs the
+ * conversion and upload of the tiles that changed and in view, and a large map never needs
+ * more texture memory than the screen shows. Used in place of the stock OccupancyGridLayer,
+ * which turns the whole grid into a single texture.
+ */
+public class TiledGridLayer extends SubscriberLayer<OccupancyGrid> implements TfLayer {
+
+    private final TiledGrid grid = new TiledGrid(GridColors.newMapTable());
+
+    public TiledGridLayer(String topic) {
+        this(GraphName.of(topic));
+    }
+
+    public TiledGridLayer(GraphName topic) {
+        super(topic, OccupancyGrid._TYPE);
+    }
+
+    public TiledGrid getGrid() {
+        return grid;
+    }
+
+    /**
+     * Apply a partial update, see {@link TiledGrid#update(int, int, int, int, ChannelBuffer)}.
+     */
+    public void update(int x, int y, int width, int height, ChannelBuffer data) {
+        grid.update(x, y, width, height, data);
+    }
+
+    @Override
+    public void onStart(VisualizationView view, ConnectedNode connectedNode) {
+        super.onStart(view, connectedNode);
+        getSubscriber().addMessageListener(new MessageListener<OccupancyGrid>() {
+            @Override
+            public void onNewMessage(OccupancyGrid message) {
+                grid.update(message);
+            }
+        });
+    }
+
+    @Override
+    public void draw(VisualizationView view, GL10 gl) {
+        grid.draw(view, gl);
+    }
+
+    @Override
+    public GraphName getFrame() {
+        return grid.getFrame();
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.rosjava.android_apps.common;
+
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes velocity commands at a fixed rate, whatever the rate of the touch events
+ * feeding it.
+ *
+ * Callers only overwrite the latest command; each tick publishes whatever is current. Once
+ * the command is zero it is repeated for {@link #IDLE_REPEATS} ticks, so the robot surely
+ * gets it, and then nothing more is sent until the stick moves again. A single Twist
+ * instance is reused, so the publish path does not allocate.
+ */
+public class VelocityPublisher {
+
+    public static final double DEFAULT_RATE_HZ = 10;
+    private static final int IDLE_REPEATS = 3;
+
+    private final String topicName;
+    private final double rateHz;
+    private final long periodNanos;
+
+    private Publisher<geometry_msgs.Twist> publisher;
+    private geometry_msgs.Twist twist;
+    private ScheduledFuture<?> timer;
+
+    private double linearX, linearY, angularZ;
+    private int idleTicks = IDLE_REPEATS;
+    private long publishedCount = 0;
+
+    public VelocityPublisher(String topicName, double rateHz) {
+        this.topicName = topicName;
+        this.rateHz = rateHz > 0 ? rateHz : DEFAULT_RATE_HZ;
+        this.periodNanos = (long) (1e9 / this.rateHz);
+    }
+
+    public synchronized void start(ConnectedNode connectedNode) {
+        publisher = connectedNode.newPublisher(topicName, geometry_msgs.Twist._TYPE);
+        // A late joiner must never get a stale command replayed.
+        publisher.setLatchMode(false);
+        twist = publisher.newMessage();
+        ScheduledExecutorService executorService = connectedNode.getScheduledExecutorService();
+        timer = executorService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                publishCurrent();
+            }
+        }, 0, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (publisher != null) {
+            // Leave the robot standing still.
+            stop();
+            publishCurrent();
+            publisher.shutdown();
+            publisher = null;
+        }
+    }
+
+    /**
+     * Replace the current command; it goes out on the next tick.
+     */
+    public synchronized void setVelocity(double linearX, double linearY, double angularZ) {
+        this.linearX = linearX;
+        this.linearY = linearY;
+        this.angularZ = angularZ;
+        if (!isIdle()) {
+            idleTicks = 0;
+        }
+    }
+
+    /**
+     * Dead-man switch: zero the command, e.g. when the finger leaves the joystick.
+     */
+    public synchronized void stop() {
+        setVelocity(0, 0, 0);
+    }
+
+    public synchronized long getPublishedCount() {
+        return publishedCount;
+    }
+
+    private boolean isIdle() {
+        return linearX == 0 && linearY == 0 && angularZ == 0;
+    }
+
+    private synchronized void publishCurrent() {
+        if (publisher == null) {
+            return;
+        }
+        if (isIdle()) {
+            if (idleTicks >= IDLE_REPEATS) {
+                return;
+            }
+            idleTicks++;
+        }
+        twist.getLinear().setX(linearX);
+        twist.getLinear().setY(linearY);
+        twist.getAngular().setZ(angularZ);
+        publisher.publish(twist);
+        publishedCount++;
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.rosjava.android_apps.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link GridConverter} converts tiles exactly as a single thread does, and times
+ * it against the per-cell loop it replaced on 1k, 4k and 8k square grids. Bands run on a pool
+ * of at least {@link #MIN_THREADS} threads, so they really are concurrent even on a single
+ * core.
+ */
+public class GridConverterTest {
+
+    private static final int[] GRID_SIZES = { 1000, 4000, 8000 };
+    /** Tiles converted at a time, each into a reused buffer, as a grid does. */
+    private static final int BATCH_TILES = TiledGrid.MAX_RESIDENT_TILES;
+    private static final int RUNS = 3;
+    private static final int MIN_THREADS = 4;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(
+                Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void bandsMatchSingleThread() {
+        for (int size : new int[] { 1000, 4000 }) {
+            byte[] cells = newCells(size);
+            for (boolean paletted : new boolean[] { false, true }) {
+                int[] colors = GridColors.newMapTable();
+                List<int[]> areas = tileAreas(size);
+                for (int first = 0; first < areas.size(); first += BATCH_TILES) {
+                    List<int[]> batch = areas.subList(first, Math.min(first + BATCH_TILES, areas.size()));
+                    List<GridTile> banded = newTiles(batch, paletted);
+                    List<GridTile> single = newTiles(batch, paletted);
+                    GridConverter.convert(banded, cells, size, colors, executor);
+                    for (int i = 0; i < batch.size(); i++) {
+                        single.get(i).convert(cells, size, colors);
+                        assertTrue(!banded.get(i).isStale());
+                        assertEquals("Tile at " + batch.get(i)[0] + "," + batch.get(i)[1],
+                                single.get(i).getBuffer(), banded.get(i).getBuffer());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void singleThreadMatchesPerCellLoop() {
+        int size = 1000;
+        byte[] cells = newCells(size);
+        int[] colors = GridColors.newMapTable();
+        List<int[]> areas = tileAreas(size);
+        List<GridTile> tiles = newTiles(areas, false);
+        for (int i = 0; i < areas.size(); i++) {
+            tiles.get(i).convert(cells, size, colors);
+            ByteBuffer expected = newBuffer(false, true);
+            convertPerCell(expected.asIntBuffer(), cells, size, colors, areas.get(i));
+            assertEquals(expected, tiles.get(i).getBuffer());
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        System.out.println(String.format(Locale.US, "%d cores; ms per grid, best of %d:",
+                Runtime.getRuntime().availableProcessors(), RUNS));
+        for (int size : GRID_SIZES) {
+            byte[] cells = newCells(size);
+            int[] colors = GridColors.newMapTable();
+            List<int[]> areas = tileAreas(size);
+            ByteBuffer[] buffers = new ByteBuffer[BATCH_TILES];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = newBuffer(false, false);
+            }
+
+            long perCell = Long.MAX_VALUE;
+            long single = Long.MAX_VALUE;
+            long banded = Long.MAX_VALUE;
+            // The first run warms up.
+            for (int run = 0; run <= RUNS; run++) {
+                long start = System.nanoTime();
+                for (int first = 0; first < areas.size(); first += BATCH_TILES) {
+                    int count = Math.min(BATCH_TILES, areas.size() - first);
+                    for (int i = 0; i < count; i++) {
+                        convertPerCell(buffers[i].asIntBuffer(), cells, size, colors,
+                                areas.get(first + i));
+                    }
+                }
+                long perCellRun = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (List<GridTile> batch : batches(areas, buffers)) {
+                    for (GridTile tile : batch) {
+                        tile.convert(cells, size, colors);
+                    }
+                }
+                long singleRun = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (List<GridTile> batch : batches(areas, buffers)) {
+                    GridConverter.convert(batch, cells, size, colors, executor);
+                }
+                long bandedRun = System.nanoTime() - start;
+
+                if (run > 0) {
+                    perCell = Math.min(perCell, perCellRun);
+                    single = Math.min(single, singleRun);
+                    banded = Math.min(banded, bandedRun);
+                }
+            }
+            System.out.println(String.format(Locale.US,
+                    "%5d^2 cells, %4d tiles: per cell %7.1f, bulk rows %7.1f, bands %7.1f (%.1fx)",
+                    size, areas.size(), perCell / 1e6, single / 1e6, banded / 1e6,
+                    (double) perCell / banded));
+        }
+    }
+
+    /**
+     * The conversion before rows and bands: one absolute put per cell, after clearing the
+     * whole buffer of an edge tile.
+     */
+    private static void convertPerCell(IntBuffer pixels, byte[] cells, int levelWidth,
+                                       int[] colors, int[] area) {
+        int x = area[0];
+        int y = area[1];
+        int width = area[2];
+        int height = area[3];
+        if (width < GridTile.SIZE || height < GridTile.SIZE) {
+            for (int i = 0; i < GridTile.SIZE * GridTile.SIZE; i++) {
+                pixels.put(i, 0);
+            }
+        }
+        for (int row = 0; row < height; row++) {
+            int cell = (y + row) * levelWidth + x;
+            int pixel = row * GridTile.SIZE;
+            for (int column = 0; column < width; column++) {
+                pixels.put(pixel++, colors[cells[cell++] & 0xff]);
+            }
+        }
+    }
+
+    /**
+     * Occupancy-like cells: mostly free, some walls and unknown space, and noise.
+     */
+    private static byte[] newCells(int size) {
+        byte[] cells = new byte[size * size];
+        Random random = new Random(size);
+        for (int i = 0; i < cells.length; i++) {
+            int r = random.nextInt(100);
+            cells[i] = (byte) (r < 60 ? 0 : r < 75 ? -1 : r < 90 ? 100 : random.nextInt(101));
+        }
+        return cells;
+    }
+
+    /**
+     * @return {x, y, width, height} of every tile of a level-0 grid of that size
+     */
+    private static List<int[]> tileAreas(int size) {
+        List<int[]> areas = new ArrayList<int[]>();
+        for (int y = 0; y < size; y += GridTile.SIZE) {
+            for (int x = 0; x < size; x += GridTile.SIZE) {
+                areas.add(new int[] { x, y, Math.min(GridTile.SIZE, size - x),
+                        Math.min(GridTile.SIZE, size - y) });
+            }
+        }
+        return areas;
+    }
+
+    private static List<List<GridTile>> batches(List<int[]> areas, ByteBuffer[] buffers) {
+        List<List<GridTile>> batches = new ArrayList<List<GridTile>>();
+        for (int first = 0; first < areas.size(); first += buffers.length) {
+            List<GridTile> batch = new ArrayList<GridTile>();
+            for (int i = 0; i < buffers.length && first + i < areas.size(); i++) {
+                int[] area = areas.get(first + i);
+                batch.add(new GridTile(0, area[0], area[1], area[2], area[3], false, buffers[i]));
+            }
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * @return tiles in buffers filled with leftovers, as recycled ones are
+     */
+    private static List<GridTile> newTiles(List<int[]> areas, boolean paletted) {
+        List<GridTile> tiles = new ArrayList<GridTile>();
+        for (int[] area : areas) {
+            tiles.add(new GridTile(0, area[0], area[1], area[2], area[3], paletted,
+                    newBuffer(paletted, true)));
+        }
+        return tiles;
+    }
+
+    /**
+     * @param garbage whether to fill the buffer with leftovers
+     */
+    private static ByteBuffer newBuffer(boolean paletted, boolean garbage) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(GridTile.getBufferBytes(paletted))
+                .order(ByteOrder.nativeOrder());
+        if (garbage) {
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) (i * 31));
+            }
+        }
+        return buffer;
+    }
+}
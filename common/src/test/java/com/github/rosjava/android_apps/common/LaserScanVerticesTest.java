@@ -0,0 +1,176 @@
+package com.github.rosjava.android_apps.common;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the vertices {@link LaserScanVertices} makes for 1080-beam scans over 270 degrees, as
+ * common laser scanners produce at 40 Hz, and times them against that rate.
+ */
+public class LaserScanVerticesTest {
+
+    private static final int BEAMS = 1080;
+    private static final float ANGLE_MIN = (float) Math.toRadians(-135);
+    private static final float ANGLE_INCREMENT = (float) Math.toRadians(270.0 / BEAMS);
+    private static final float RANGE_MIN = 0.05f;
+    private static final float RANGE_MAX = 30;
+    private static final double SCAN_RATE_HZ = 40;
+    /** 10 s of scans. */
+    private static final int SCANS = 400;
+    private static final double ZOOMED_IN = 0.005;
+    private static final double ZOOMED_OUT = 0.05;
+
+    @Test
+    public void keepsEveryBeamWhenZoomedIn() {
+        LaserScanVertices vertices = new LaserScanVertices();
+        float[] ranges = room(0, 0, 0);
+        assertTrue(update(vertices, ranges, ZOOMED_IN));
+        assertEquals(1 + BEAMS, vertices.getVertexCount());
+
+        FloatBuffer buffer = vertices.getVertices();
+        assertEquals(0, buffer.get(0), 0);
+        assertEquals(0, buffer.get(1), 0);
+        for (int i : new int[] { 0, BEAMS / 2, BEAMS - 1 }) {
+            double angle = ANGLE_MIN + i * ANGLE_INCREMENT;
+            assertEquals(ranges[i] * Math.cos(angle), buffer.get(2 + 2 * i), 1e-3);
+            assertEquals(ranges[i] * Math.sin(angle), buffer.get(3 + 2 * i), 1e-3);
+        }
+    }
+
+    @Test
+    public void decimatesToPointSpacingWhenZoomedOut() {
+        LaserScanVertices vertices = new LaserScanVertices();
+        float[] ranges = room(0, 0, 0);
+        update(vertices, ranges, ZOOMED_OUT);
+
+        float longest = 0;
+        for (float range : ranges) {
+            longest = Math.max(longest, range);
+        }
+        int stride = (int) (DecimatedLaserScanLayer.MIN_POINT_SPACING_PIXELS * ZOOMED_OUT
+                / (ANGLE_INCREMENT * longest));
+        assertTrue(stride > 1);
+        assertEquals(1 + (BEAMS + stride - 1) / stride, vertices.getVertexCount());
+
+        // Neighbouring points at the longest range are as close to the spacing on screen as
+        // whole beams allow, without going over it.
+        double spacingPixels = stride * ANGLE_INCREMENT * longest / ZOOMED_OUT;
+        assertTrue(spacingPixels <= DecimatedLaserScanLayer.MIN_POINT_SPACING_PIXELS);
+        assertTrue(spacingPixels * (stride + 1) / stride
+                > DecimatedLaserScanLayer.MIN_POINT_SPACING_PIXELS);
+    }
+
+    @Test
+    public void skipsBeamsOutOfRange() {
+        LaserScanVertices vertices = new LaserScanVertices();
+        float[] ranges = room(0, 0, 0);
+        ranges[10] = Float.NaN;
+        ranges[20] = Float.POSITIVE_INFINITY;
+        ranges[30] = RANGE_MIN / 2;
+        ranges[40] = RANGE_MAX * 2;
+        update(vertices, ranges, ZOOMED_IN);
+        assertEquals(1 + BEAMS - 4, vertices.getVertexCount());
+    }
+
+    @Test
+    public void keepsVerticesUnlessAPixelChanged() {
+        LaserScanVertices vertices = new LaserScanVertices();
+        float[] ranges = room(0, 0, 0);
+        assertTrue(update(vertices, ranges, ZOOMED_IN));
+        assertFalse(update(vertices, ranges.clone(), ZOOMED_IN));
+
+        float[] subPixel = ranges.clone();
+        for (int i = 0; i < subPixel.length; i++) {
+            subPixel[i] += (float) ZOOMED_IN / 2;
+        }
+        assertFalse(update(vertices, subPixel, ZOOMED_IN));
+
+        float[] onePixel = ranges.clone();
+        onePixel[BEAMS / 3] += (float) ZOOMED_IN * 2;
+        assertTrue(update(vertices, onePixel, ZOOMED_IN));
+
+        float[] lost = onePixel.clone();
+        lost[BEAMS / 4] = Float.NaN;
+        assertTrue(update(vertices, lost, ZOOMED_IN));
+
+        // A new zoom always rebuilds.
+        assertTrue(update(vertices, lost, ZOOMED_OUT));
+        assertEquals(4, vertices.getBuiltCount());
+        assertEquals(2, vertices.getSuppressedCount());
+    }
+
+    @Test
+    public void reusesOneBuffer() {
+        LaserScanVertices vertices = new LaserScanVertices();
+        for (int scan = 0; scan < SCANS; scan++) {
+            update(vertices, room(0.0125f * scan - 2, 0, scan),
+                    scan % 2 == 0 ? ZOOMED_IN : ZOOMED_OUT);
+        }
+        assertEquals(SCANS, vertices.getBuiltCount());
+        assertEquals(1, vertices.getAllocationCount());
+    }
+
+    @Test
+    public void keepsUpWithScanRate() {
+        double periodMicros = 1e6 / SCAN_RATE_HZ;
+        for (double metersPerPixel : new double[] { ZOOMED_IN, ZOOMED_OUT }) {
+            // Warm up, then 10 s of a robot driving at 0.5 m/s through the room.
+            LaserScanVertices vertices = new LaserScanVertices();
+            for (int scan = 0; scan < SCANS; scan++) {
+                update(vertices, room(0, 0, scan), metersPerPixel);
+            }
+            float[][] scans = new float[SCANS][];
+            for (int scan = 0; scan < SCANS; scan++) {
+                scans[scan] = room((float) (0.5 / SCAN_RATE_HZ * scan - 2), 0, scan);
+            }
+            vertices = new LaserScanVertices();
+            long start = System.nanoTime();
+            for (float[] ranges : scans) {
+                update(vertices, ranges, metersPerPixel);
+            }
+            double meanMicros = (System.nanoTime() - start) / 1000.0 / SCANS;
+
+            System.out.println(String.format(Locale.US,
+                    "%d beams at %.0f Hz, %.3f m/px: %.1f us per scan (%.2f%% of the period), "
+                            + "%d built, %d unchanged, %d vertices",
+                    BEAMS, SCAN_RATE_HZ, metersPerPixel, meanMicros,
+                    100 * meanMicros / periodMicros, vertices.getBuiltCount(),
+                    vertices.getSuppressedCount(), vertices.getVertexCount()));
+            assertEquals(SCANS, vertices.getBuiltCount() + vertices.getSuppressedCount());
+            assertTrue("Took " + meanMicros + " us per scan", meanMicros < periodMicros / 10);
+        }
+    }
+
+    private static boolean update(LaserScanVertices vertices, float[] ranges,
+                                  double metersPerPixel) {
+        return vertices.update(ranges, ANGLE_MIN, ANGLE_INCREMENT, RANGE_MIN, RANGE_MAX,
+                metersPerPixel);
+    }
+
+    /**
+     * Ranges seen from (x, y) in a 10 x 6 m room centred on the origin, with 1 cm of noise
+     * seeded by {@code seed}.
+     */
+    private static float[] room(float x, float y, int seed) {
+        float[] ranges = new float[BEAMS];
+        Random noise = new Random(seed);
+        double halfX = 5;
+        double halfY = 3;
+        for (int i = 0; i < BEAMS; i++) {
+            double angle = ANGLE_MIN + i * ANGLE_INCREMENT;
+            double dx = Math.cos(angle);
+            double dy = Math.sin(angle);
+            double toX = dx == 0 ? Double.MAX_VALUE : ((dx > 0 ? halfX : -halfX) - x) / dx;
+            double toY = dy == 0 ? Double.MAX_VALUE : ((dy > 0 ? halfY : -halfY) - y) / dy;
+            ranges[i] = (float) (Math.min(toX, toY) + 0.01 * noise.nextGaussian());
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.rosjava.android_apps.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import world_canvas_msgs.MapListEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link MapCatalogIndex} against a brute-force scan over a catalog of
+ * {@link #MAP_COUNT} maps, and that queries on it stay interactive.
+ */
+public class MapCatalogIndexTest {
+
+    private static final int MAP_COUNT = 12000;
+    private static final String[] ROOMS = { "Kitchen", "Lab", "Hall by the kitchen", "Garage" };
+    private static final long BASE_DATE = 1500000000L;
+    private static final long MAX_QUERY_MILLIS = 50;
+
+    private List<MapListEntry> entries;
+    private MapCatalogIndex index;
+
+    @Before
+    public void setUp() {
+        entries = new ArrayList<MapListEntry>(MAP_COUNT);
+        for (int i = 0; i < MAP_COUNT; i++) {
+            String name = i % 101 == 0 ? null
+                    : String.format(Locale.US, "%s %05d", ROOMS[i % ROOMS.length], i);
+            // Scramble the dates, so that server order is neither of the date orders.
+            long date = BASE_DATE + 60L * ((i * 7919L) % MAP_COUNT);
+            entries.add(newEntry(String.format(Locale.US, "id-%08x", i), name, date));
+        }
+        index = new MapCatalogIndex();
+        index.build(entries);
+    }
+
+    @Test
+    public void sortOrders() {
+        assertEquals(MAP_COUNT, index.size());
+        assertEquals(entries, index.query("", MapCatalogIndex.SortOrder.SERVER));
+
+        List<MapListEntry> newest = index.query("", MapCatalogIndex.SortOrder.NEWEST_FIRST);
+        assertEquals(MAP_COUNT, newest.size());
+        for (int i = 1; i < newest.size(); i++) {
+            assertTrue(newest.get(i - 1).getDate() >= newest.get(i).getDate());
+        }
+
+        List<MapListEntry> oldest = index.query("", MapCatalogIndex.SortOrder.OLDEST_FIRST);
+        for (int i = 1; i < oldest.size(); i++) {
+            assertTrue(oldest.get(i - 1).getDate() <= oldest.get(i).getDate());
+        }
+
+        assertEquals(sortedByName(), index.query(null, MapCatalogIndex.SortOrder.NAME));
+    }
+
+    @Test
+    public void prefixMatchesComeBeforeSubstringMatches() {
+        for (MapCatalogIndex.SortOrder order : MapCatalogIndex.SortOrder.values()) {
+            List<MapListEntry> result = index.query("Kitchen", order);
+            assertEquals(expected("kitchen", index.query("", order)), result);
+
+            // "Kitchen ..." by name, then "Hall by the kitchen ...".
+            int prefixCount = 0;
+            while (prefixCount < result.size() && nameOf(result.get(prefixCount)).startsWith("Kitchen")) {
+                prefixCount++;
+            }
+            assertEquals(MAP_COUNT / ROOMS.length - countNamelessIn(0), prefixCount);
+            for (MapListEntry entry : result.subList(prefixCount, result.size())) {
+                assertTrue(nameOf(entry).startsWith("Hall by the kitchen"));
+            }
+        }
+    }
+
+    @Test
+    public void substringMatchesNameAndMapId() {
+        List<MapListEntry> byNumber = index.query("  01234 ", MapCatalogIndex.SortOrder.SERVER);
+        assertEquals(expected("01234", entries), byNumber);
+        // "Hall by the kitchen 01234", and id-00001234.
+        assertEquals(2, byNumber.size());
+
+        List<MapListEntry> byId = index.query("ID-00000A1", MapCatalogIndex.SortOrder.SERVER);
+        assertEquals(expected("id-00000a1", entries), byId);
+        assertEquals(16, byId.size());
+
+        assertTrue(index.query("no such map", MapCatalogIndex.SortOrder.NAME).isEmpty());
+    }
+
+    @Test
+    public void renameIsReindexed() {
+        MapListEntry entry = entries.get(42);
+        entry.setName("Attic");
+        index.update(entry);
+        assertEquals(Collections.singletonList(entry),
+                index.query("attic", MapCatalogIndex.SortOrder.NAME));
+        // Right after the nameless maps.
+        int nameless = 0;
+        for (int room = 0; room < ROOMS.length; room++) {
+            nameless += countNamelessIn(room);
+        }
+        assertEquals(entry, index.query("", MapCatalogIndex.SortOrder.NAME).get(nameless));
+        assertTrue(index.getDisplayString(entry.getMapId()).startsWith("Attic "));
+    }
+
+    @Test
+    public void queriesStayInteractive() {
+        long start = System.nanoTime();
+        MapCatalogIndex fresh = new MapCatalogIndex();
+        fresh.build(entries);
+        long buildMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        fresh.query("", MapCatalogIndex.SortOrder.NAME);
+        long firstSortMillis = (System.nanoTime() - start) / 1000000;
+
+        // Every keystroke of a search typed into the field, over every order.
+        String typed = "hall by the kitchen 0";
+        long[] queryNanos = new long[typed.length() * MapCatalogIndex.SortOrder.values().length];
+        int n = 0;
+        for (MapCatalogIndex.SortOrder order : MapCatalogIndex.SortOrder.values()) {
+            for (int i = 1; i <= typed.length(); i++) {
+                start = System.nanoTime();
+                fresh.query(typed.substring(0, i), order);
+                queryNanos[n++] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(queryNanos);
+        long medianMicros = queryNanos[queryNanos.length / 2] / 1000;
+        long maxMicros = queryNanos[queryNanos.length - 1] / 1000;
+        System.out.println(String.format(Locale.US,
+                "%d maps: build %d ms, first sort %d ms, query median %d us, max %d us",
+                MAP_COUNT, buildMillis, firstSortMillis, medianMicros, maxMicros));
+        assertTrue("Median query took " + medianMicros + " us",
+                medianMicros < MAX_QUERY_MILLIS * 1000);
+    }
+
+    /**
+     * Brute force: entries in the given order whose name starts with the needle, then those
+     * containing it in their name or map id.
+     */
+    private static List<MapListEntry> expected(String needle, List<MapListEntry> ordered) {
+        List<MapListEntry> prefix = new ArrayList<MapListEntry>();
+        List<MapListEntry> substring = new ArrayList<MapListEntry>();
+        for (MapListEntry entry : ordered) {
+            String name = nameOf(entry).toLowerCase(Locale.US);
+            if (name.startsWith(needle)) {
+                prefix.add(entry);
+            } else if (name.contains(needle) || entry.getMapId().contains(needle)) {
+                substring.add(entry);
+            }
+        }
+        prefix.addAll(substring);
+        return prefix;
+    }
+
+    private List<MapListEntry> sortedByName() {
+        List<MapListEntry> result = new ArrayList<MapListEntry>(entries);
+        Collections.sort(result, new Comparator<MapListEntry>() {
+            @Override
+            public int compare(MapListEntry a, MapListEntry b) {
+                int byName = nameOf(a).toLowerCase(Locale.US).compareTo(nameOf(b).toLowerCase(Locale.US));
+                return byName != 0 ? byName : Long.compare(b.getDate(), a.getDate());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return how many of the maps named after {@code ROOMS[room]} were left nameless
+     */
+    private static int countNamelessIn(int room) {
+        int count = 0;
+        for (int i = room; i < MAP_COUNT; i += ROOMS.length) {
+            if (i % 101 == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String nameOf(MapListEntry entry) {
+        return entry.getName() == null ? "" : entry.getName();
+    }
+
+    private static MapListEntry newEntry(final String mapId, final String name, final long date) {
+        return (MapListEntry) Proxy.newProxyInstance(MapListEntry.class.getClassLoader(),
+                new Class<?>[] { MapListEntry.class }, new InvocationHandler() {
+                    private String currentName = name;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String called = method.getName();
+                        if (called.equals("getMapId")) {
+                            return mapId;
+                        }
+                        if (called.equals("getName")) {
+                            return currentName;
+                        }
+                        if (called.equals("setName")) {
+                            currentName = (String) args[0];
+                            return null;
+                        }
+                        if (called.equals("getDate")) {
+                            return date;
+                        }
+                        if (called.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (called.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (called.equals("toString")) {
+                            return mapId + " " + currentName;
+                        }
+                        throw new UnsupportedOperationException(called);
+                    }
+                });
+    }
+}
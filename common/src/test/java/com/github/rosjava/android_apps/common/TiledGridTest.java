@@ -0,0 +1,158 @@
+package com.github.rosjava.android_apps.common;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+import org.ros.namespace.GraphName;
+import org.ros.rosjava_geometry.Transform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how much memory a {@link TiledGrid} holds for a 4000 x 4000 map as the viewport of a
+ * 1920 x 1080 screen moves over it, through {@link TiledGrid#selectTiles}, without GL.
+ */
+public class TiledGridTest {
+
+    private static final int GRID_SIZE = 4000;
+    private static final float RESOLUTION = 0.05f;
+    private static final int SCREEN_WIDTH = 1920;
+    private static final int SCREEN_HEIGHT = 1080;
+    /** Enough frames for any viewport to get all of its tiles converted. */
+    private static final int SETTLE_FRAMES = 20;
+
+    private byte[] cells;
+
+    @Before
+    public void setUp() {
+        cells = new byte[GRID_SIZE * GRID_SIZE];
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                // Free space with walls every 100 cells, unknown beyond the diagonal.
+                cells[y * GRID_SIZE + x] = (byte) (x > y + 3000 ? -1
+                        : (x % 100 == 0 || y % 100 == 0 ? 100 : 0));
+            }
+        }
+    }
+
+    @Test
+    public void pyramidAddsAThird() {
+        TiledGrid grid = newGrid(true);
+        long expected = 0;
+        for (int size = GRID_SIZE; ; size = (size + 1) / 2) {
+            expected += (long) size * size;
+            if (size <= GridTile.SIZE) {
+                break;
+            }
+        }
+        // 4000, 2000, 1000, 500 and 250 cells square.
+        assertEquals(21312500L, expected);
+        assertEquals(expected, grid.getCellBytes());
+        assertTrue(grid.getCellBytes() < cells.length * 4L / 3 + GridTile.SIZE * GridTile.SIZE);
+        // No tile before the first frame.
+        assertEquals(0, grid.getResidentTileCount());
+        assertEquals(expected, grid.getMemoryBytes());
+    }
+
+    @Test
+    public void fullResolutionViewOnlyHoldsVisibleTiles() {
+        TiledGrid grid = newGrid(true);
+        int[] view = { 1000, 1000, 1000 + SCREEN_WIDTH, 1000 + SCREEN_HEIGHT };
+        List<GridTile> visible = settle(grid, view, RESOLUTION);
+
+        // Columns 3 to 11 and rows 3 to 8 of level 0.
+        assertEquals(9 * 6, visible.size());
+        for (GridTile tile : visible) {
+            assertEquals(0, tile.getLevel());
+            assertTrue(!tile.isStale());
+        }
+        assertEquals(visible.size(), grid.getResidentTileCount());
+        assertEquals(visible.size(), grid.getConvertedTileCount());
+        assertEquals(grid.getCellBytes() + visible.size() * (long) GridTile.PALETTED_BYTES,
+                grid.getMemoryBytes());
+        assertEquals(0, grid.getTextureBytes());
+        report("full resolution", grid);
+    }
+
+    @Test
+    public void wholeMapViewUsesCoarserLevel() {
+        TiledGrid grid = newGrid(false);
+        int[] view = { 0, 0, GRID_SIZE, GRID_SIZE };
+        double metersPerPixel = GRID_SIZE * RESOLUTION / SCREEN_HEIGHT;
+        List<GridTile> visible = settle(grid, view, metersPerPixel);
+
+        // Level 1 is 2000 cells square, its cells still under a pixel: 8 x 8 tiles.
+        assertEquals(64, visible.size());
+        for (GridTile tile : visible) {
+            assertEquals(1, tile.getLevel());
+        }
+        assertEquals(grid.getCellBytes() + 64L * GridTile.PIXEL_BYTES, grid.getMemoryBytes());
+        report("whole map, RGBA", grid);
+    }
+
+    @Test
+    public void unplacedViewDrawsSingleCoarsestTile() {
+        TiledGrid grid = newGrid(true);
+        List<GridTile> visible = settle(grid, new int[] { 0, 0, GRID_SIZE, GRID_SIZE }, 0);
+        assertEquals(1, visible.size());
+        assertEquals(4, visible.get(0).getLevel());
+    }
+
+    @Test
+    public void panningAndZoomingStayWithinTileBudget() {
+        TiledGrid grid = newGrid(true);
+        long maxBytes = grid.getCellBytes() + (long) (TiledGrid.MAX_RESIDENT_TILES
+                + TiledGrid.MAX_CONVERSIONS_PER_FRAME) * GridTile.PALETTED_BYTES;
+        long peakBytes = 0;
+        // Sweep the screen across the map at full resolution, then zoom out, then back in.
+        for (int x = 0; x + SCREEN_WIDTH <= GRID_SIZE; x += 250) {
+            int y = x * (GRID_SIZE - SCREEN_HEIGHT) / (GRID_SIZE - SCREEN_WIDTH);
+            settle(grid, new int[] { x, y, x + SCREEN_WIDTH, y + SCREEN_HEIGHT }, RESOLUTION);
+            assertTrue(grid.getResidentTileCount() <= TiledGrid.MAX_RESIDENT_TILES);
+            peakBytes = Math.max(peakBytes, grid.getMemoryBytes());
+        }
+        settle(grid, new int[] { 0, 0, GRID_SIZE, GRID_SIZE }, GRID_SIZE * RESOLUTION / SCREEN_HEIGHT);
+        peakBytes = Math.max(peakBytes, grid.getMemoryBytes());
+        settle(grid, new int[] { 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT }, RESOLUTION);
+        peakBytes = Math.max(peakBytes, grid.getMemoryBytes());
+
+        assertTrue(grid.getResidentTileCount() <= TiledGrid.MAX_RESIDENT_TILES);
+        assertTrue("Peak " + peakBytes + " bytes", peakBytes <= maxBytes);
+        System.out.println(String.format(Locale.US,
+                "%dx%d grid: peak %.1f MB while panning, against %.1f MB of RGBA for all cells",
+                GRID_SIZE, GRID_SIZE, peakBytes / 1e6, cells.length * 4 / 1e6));
+    }
+
+    private TiledGrid newGrid(boolean paletted) {
+        TiledGrid grid = new TiledGrid(GridColors.newMapTable(), true, paletted);
+        grid.update(GraphName.of("map"), Transform.identity(), RESOLUTION, GRID_SIZE, GRID_SIZE,
+                ChannelBuffers.wrappedBuffer(cells));
+        assertEquals(paletted, grid.isPaletted());
+        return grid;
+    }
+
+    /**
+     * Run frames on one viewport until all of its tiles are converted.
+     *
+     * @return the tiles of the last frame
+     */
+    private static List<GridTile> settle(TiledGrid grid, int[] view, double metersPerPixel) {
+        List<GridTile> visible = new ArrayList<GridTile>();
+        for (int frame = 0; frame < SETTLE_FRAMES; frame++) {
+            visible.clear();
+            grid.selectTiles(view.clone(), metersPerPixel, visible);
+        }
+        return visible;
+    }
+
+    private static void report(String view, TiledGrid grid) {
+        System.out.println(String.format(Locale.US, "%s: %d tiles, %.1f MB cells, %.1f MB total",
+                view, grid.getResidentTileCount(), grid.getCellBytes() / 1e6,
+                grid.getMemoryBytes() / 1e6));
+    }
+}
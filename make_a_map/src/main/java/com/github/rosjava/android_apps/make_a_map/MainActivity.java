@@ -32,18 +32,21 @@ import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.Toast;
 
+import com.github.rosjava.android_apps.common.CameraStreamSelector;
+import com.github.rosjava.android_apps.common.CameraView;
+import com.github.rosjava.android_apps.common.DecimatedLaserScanLayer;
+import com.github.rosjava.android_apps.common.JoystickView;
+import com.github.rosjava.android_apps.common.NodeMainHost;
+import com.github.rosjava.android_apps.common.PooledBitmapFromCompressedImage;
+import com.github.rosjava.android_apps.common.TiledGridLayer;
+import com.github.rosjava.android_apps.common.VelocityPublisher;
 import com.github.rosjava.android_remocons.common_tools.apps.RosAppActivity;
 import com.google.common.collect.Lists;
 
 import org.ros.address.InetAddressFactory;
-import org.ros.android.BitmapFromCompressedImage;
-import org.ros.android.view.RosImageView;
-import org.ros.android.view.VirtualJoystickView;
 import org.ros.android.view.visualization.VisualizationView;
 import org.ros.android.view.visualization.layer.CameraControlListener;
-import org.ros.android.view.visualization.layer.LaserScanLayer;
 import org.ros.android.view.visualization.layer.Layer;
-import org.ros.android.view.visualization.layer.OccupancyGridLayer;
 import org.ros.android.view.visualization.layer.RobotLayer;
 import org.ros.namespace.NameResolver;
 import org.ros.node.NodeConfiguration;
@@ -52,6 +55,8 @@ import org.ros.time.NtpTimeProvider;
 import org.ros.time.TimeProvider;
 import org.ros.time.WallTimeProvider;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import world_canvas_msgs.SaveMapResponse;
@@ -63,8 +68,9 @@ public class MainActivity extends RosAppActivity {
 
     private static final int NAME_MAP_DIALOG_ID = 0;
 
-	private RosImageView<sensor_msgs.CompressedImage> cameraView;
-	private VirtualJoystickView virtualJoystickView;
+	private CameraView cameraView;
+	private volatile CameraStreamSelector cameraStreamSelector;
+	private JoystickView virtualJoystickView;
 	private VisualizationView mapView;
 	private ViewGroup mainLayout;
 	private ViewGroup sideLayout;
@@ -73,12 +79,13 @@ public class MainActivity extends RosAppActivity {
 	private Button backButton;
 	private NodeMainExecutor nodeMainExecutor;
 	private NodeConfiguration nodeConfiguration;
+	private NodeMainHost nodeMainHost;
 	private ProgressDialog waitingDialog;
 	private AlertDialog notiDialog;
 
 
-    private OccupancyGridLayer occupancyGridLayer = null;
-    private LaserScanLayer laserScanLayer = null;
+    private TiledGridLayer occupancyGridLayer = null;
+    private DecimatedLaserScanLayer laserScanLayer = null;
     private RobotLayer robotLayer = null;
 
 	public MainActivity() {
@@ -102,10 +109,10 @@ public class MainActivity extends RosAppActivity {
 
 		super.onCreate(savedInstanceState);
 
-		cameraView = (RosImageView<sensor_msgs.CompressedImage>) findViewById(R.id.image);
+		cameraView = (CameraView) findViewById(R.id.image);
 		cameraView.setMessageType(sensor_msgs.CompressedImage._TYPE);
-		cameraView.setMessageToBitmapCallable(new BitmapFromCompressedImage());
-		virtualJoystickView = (VirtualJoystickView) findViewById(R.id.virtual_joystick);
+		cameraView.setMessageToBitmapCallable(new PooledBitmapFromCompressedImage());
+		virtualJoystickView = (JoystickView) findViewById(R.id.virtual_joystick);
 		refreshButton = (ImageButton) findViewById(R.id.refresh_button);
 		saveButton = (ImageButton) findViewById(R.id.save_map);
 		backButton = (Button) findViewById(R.id.back_button);
@@ -175,23 +182,25 @@ public class MainActivity extends RosAppActivity {
                             mapManager.registerCallback(new MapManager.StatusCallback() {
                                 @Override
                                 public void timeoutCallback() {
+                                    nodeMainHost.removeNodeMain(mapManager);
                                     safeDismissWaitingDialog();
                                     safeShowNotiDialog("Error", "Timeout");
                                 }
                                 @Override
                                 public void onSuccessCallback(SaveMapResponse arg0) {
+                                    nodeMainHost.removeNodeMain(mapManager);
                                     safeDismissWaitingDialog();
                                     safeShowNotiDialog("Success", "Map saving success!");
                                 }
                                 @Override
                                 public void onFailureCallback(Exception e) {
+                                    nodeMainHost.removeNodeMain(mapManager);
                                    safeDismissWaitingDialog();
                                     safeShowNotiDialog("Error", e.getMessage());
                                 }
                             });
 
-							nodeMainExecutor.execute(mapManager,
-									nodeConfiguration.setNodeName("android/save_map"));
+							nodeMainHost.executeOnce(mapManager);
 
 						} catch (Exception e) {
 							e.printStackTrace();
@@ -273,6 +282,33 @@ public class MainActivity extends RosAppActivity {
 		});
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		cameraView.setPaused(false);
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.resume();
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		// Stop pulling camera frames over the network while nobody can see them.
+		cameraView.setPaused(true);
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.pause();
+		}
+		super.onPause();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.stop();
+		}
+		super.onDestroy();
+	}
+
 	@Override
 	protected void init(NodeMainExecutor nodeMainExecutor) {
 
@@ -281,6 +317,8 @@ public class MainActivity extends RosAppActivity {
 
 		nodeConfiguration = NodeConfiguration.newPublic(InetAddressFactory
 				.newNonLoopback().getHostAddress(), getMasterUri());
+		// All widgets and service calls share one node: one master registration, one set of sockets.
+		nodeMainHost = new NodeMainHost("android/make_a_map");
 
         String joyTopic = remaps.get(getString(R.string.joystick_topic));
         String camTopic = remaps.get(getString(R.string.camera_topic));
@@ -289,12 +327,13 @@ public class MainActivity extends RosAppActivity {
         joyTopic = appNameSpace.resolve(joyTopic).toString();
         camTopic = appNameSpace.resolve(camTopic).toString();
         cameraView.setTopicName(camTopic);
+        startCameraStreamSelector(appNameSpace, nodeMainExecutor);
         virtualJoystickView.setTopicName(joyTopic);
+        virtualJoystickView.setPublishRate(Double.parseDouble(
+                params.get("cmd_vel_rate", VelocityPublisher.DEFAULT_RATE_HZ).toString()));
 
-		nodeMainExecutor.execute(cameraView,
-				nodeConfiguration.setNodeName("android/camera_view"));
-		nodeMainExecutor.execute(virtualJoystickView,
-				nodeConfiguration.setNodeName("android/virtual_joystick"));
+		nodeMainHost.addNodeMain(cameraView);
+		nodeMainHost.addNodeMain(virtualJoystickView);
 
         ViewControlLayer viewControlLayer = new ViewControlLayer(this,
                 nodeMainExecutor.getScheduledExecutorService(), cameraView,
@@ -304,8 +343,9 @@ public class MainActivity extends RosAppActivity {
         String scanTopic  = remaps.get(getString(R.string.scan_topic));
         String robotFrame = (String) params.get("robot_frame", getString(R.string.robot_frame));
 
-        occupancyGridLayer = new OccupancyGridLayer(appNameSpace.resolve(mapTopic).toString());
-        laserScanLayer = new LaserScanLayer(appNameSpace.resolve(scanTopic).toString());
+        // SLAM republishes the whole map on every update; only reconvert the tiles that changed.
+        occupancyGridLayer = new TiledGridLayer(appNameSpace.resolve(mapTopic).toString());
+        laserScanLayer = new DecimatedLaserScanLayer(appNameSpace.resolve(scanTopic).toString());
         robotLayer = new RobotLayer(robotFrame);
 
         mapView.addLayer(viewControlLayer);
@@ -338,7 +378,24 @@ public class MainActivity extends RosAppActivity {
 		}
 		nodeConfiguration.setTimeProvider(timeProvider);
 
-		nodeMainExecutor.execute(mapView, nodeConfiguration.setNodeName("android/map_view"));
+		nodeMainHost.addNodeMain(mapView);
+		nodeMainExecutor.execute(nodeMainHost,
+				nodeConfiguration.setNodeName(nodeMainHost.getDefaultNodeName()));
+	}
+
+	/**
+	 * If the app lists alternative camera streams (best first), let the selector pick the
+	 * best one the link can sustain.
+	 */
+	private void startCameraStreamSelector(NameResolver appNameSpace, NodeMainExecutor nodeMainExecutor) {
+		List<String> camTopics = new ArrayList<String>();
+		for (String topic : CameraStreamSelector.parseTopics(params.get("camera_topic_candidates", ""))) {
+			camTopics.add(appNameSpace.resolve(topic).toString());
+		}
+		if (camTopics.size() > 1) {
+			cameraStreamSelector = new CameraStreamSelector(cameraView, camTopics);
+			cameraStreamSelector.start(nodeMainExecutor.getScheduledExecutorService());
+		}
 	}
 
 	@Override
@@ -1,9 +1,14 @@
 package com.github.rosjava.android_apps.make_a_map;
 
 import android.content.Context;
-import android.os.AsyncTask;
 
+import com.github.rosjava.android_apps.common.RetryScheduler;
 import com.github.rosjava.android_remocons.common_tools.apps.AppRemappings;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import org.ros.exception.RemoteException;
 import org.ros.exception.ServiceNotFoundException;
@@ -11,10 +16,12 @@ import org.ros.namespace.GraphName;
 import org.ros.namespace.NameResolver;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
 import org.ros.node.service.ServiceClient;
 import org.ros.node.service.ServiceResponseListener;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -24,14 +31,18 @@ import world_canvas_msgs.SaveMapResponse;
 
 public class MapManager extends AbstractNodeMain {
 
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
 	private ConnectedNode connectedNode;
+	private RetryScheduler retryScheduler;
+	private ServiceClient<SaveMapRequest, SaveMapResponse> saveMapClient;
 	private ServiceResponseListener<SaveMapResponse> saveServiceResponseListener;
 
 	private String mapName;
     private String saveSrvName;
     private NameResolver nameResolver;
     private boolean nameResolverSet = false;
-    private boolean waitingFlag = false;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
 
     private StatusCallback statusCallback;
 
@@ -50,6 +61,14 @@ public class MapManager extends AbstractNodeMain {
 		mapName = "";
 	}
 
+    /**
+     * For tests: call the given, already resolved, service.
+     */
+    MapManager(String saveSrvName) {
+        this.saveSrvName = saveSrvName;
+        mapName = "";
+    }
+
 	public void setMapName(String name) {
 		mapName = name;
 	}
@@ -59,81 +78,95 @@ public class MapManager extends AbstractNodeMain {
         nameResolverSet = true;
     }
 
-	private void clearWaitFor(){
-        waitingFlag = false;
+    public void setTimeout(long timeout, TimeUnit unit) {
+        timeoutMillis = unit.toMillis(timeout);
     }
 
-    private boolean waitFor(final int timeout) {
-        waitingFlag = true;
-        AsyncTask<Void, Void, Boolean> asyncTask = new AsyncTask<Void, Void, Boolean>() {
+    /**
+     * Call the save service. The returned future, and the registered {@link StatusCallback},
+     * complete as soon as the response arrives, or with a {@link TimeoutException} once the
+     * timeout expires; nothing blocks while waiting.
+     */
+	public ListenableFuture<SaveMapResponse> saveMap(){
+        final SettableFuture<SaveMapResponse> future = SettableFuture.create();
+        Futures.addCallback(future, new FutureCallback<SaveMapResponse>() {
             @Override
-            protected Boolean doInBackground(Void... params) {
-                int count = 0;
-                int timeout_count = timeout * 1000 / 200;
-                while(waitingFlag){
-                    try { Thread.sleep(200); }
-                    catch (InterruptedException e) { return false; }
-                    if(count < timeout_count){
-                        count += 1;
-                    }
-                    else{
-                        return false;
-                    }
+            public void onSuccess(SaveMapResponse saveMapResponse) {
+                if (statusCallback != null) {
+                    statusCallback.onSuccessCallback(saveMapResponse);
                 }
-                return true;
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        try {
-            return asyncTask.get(timeout, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            return false;
-        } catch (ExecutionException e) {
-            return false;
-        } catch (TimeoutException e) {
-            return false;
-        }
-    }
-
-	public void saveMap(){
-        ServiceClient<SaveMapRequest, SaveMapResponse> saveMapClient = null;
-		if (connectedNode != null) {
-			try{
-                if (nameResolverSet){
-                    saveSrvName = nameResolver.resolve(saveSrvName).toString();
+            @Override
+            public void onFailure(Throwable t) {
+                if (statusCallback == null) {
+                    return;
+                }
+                if (t instanceof TimeoutException) {
+                    statusCallback.timeoutCallback();
+                } else if (t instanceof Exception) {
+                    statusCallback.onFailureCallback((Exception) t);
+                } else {
+                    statusCallback.onFailureCallback(new RuntimeException(t));
                 }
-                saveMapClient = connectedNode.newServiceClient(saveSrvName,	SaveMap._TYPE);
-			} catch (ServiceNotFoundException e) {
-				try {
-					Thread.sleep(1000L);
-				} catch (Exception ex) {
-				}
-                statusCallback.onFailureCallback(e);
-			}
-            if (saveMapClient != null){
-                final SaveMapRequest request = saveMapClient.newMessage();
-                request.setMapName(mapName);
-                saveMapClient.call(request, new ServiceResponseListener<SaveMapResponse>(){
+            }
+        });
+		if (connectedNode == null) {
+            future.setException(new IllegalStateException("Node not started"));
+            return future;
+        }
+        if (nameResolverSet){
+            saveSrvName = nameResolver.resolve(saveSrvName).toString();
+            nameResolverSet = false;
+        }
+        // The service may not be advertised yet; retry without holding the node's thread.
+        final ListenableFuture<SaveMapResponse> attempts = retryScheduler.submit(
+                new Callable<ListenableFuture<SaveMapResponse>>() {
                     @Override
-                    public void onSuccess(SaveMapResponse saveMapResponse) {
-                        if (waitingFlag){
-                            clearWaitFor();
-                            statusCallback.onSuccessCallback(saveMapResponse);
-                        }
+                    public ListenableFuture<SaveMapResponse> call() throws ServiceNotFoundException {
+                        saveMapClient = connectedNode.newServiceClient(saveSrvName, SaveMap._TYPE);
+                        final SettableFuture<SaveMapResponse> response = SettableFuture.create();
+                        final SaveMapRequest request = saveMapClient.newMessage();
+                        request.setMapName(mapName);
+                        saveMapClient.call(request, new ServiceResponseListener<SaveMapResponse>(){
+                            @Override
+                            public void onSuccess(SaveMapResponse saveMapResponse) {
+                                response.set(saveMapResponse);
+                            }
+                            @Override
+                            public void onFailure(RemoteException e) {
+                                response.setException(e);
+                            }
+                        });
+                        return response;
                     }
+                });
+        Futures.addCallback(attempts, new FutureCallback<SaveMapResponse>() {
+            @Override
+            public void onSuccess(SaveMapResponse saveMapResponse) {
+                future.set(saveMapResponse);
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        });
+        // Whichever of response and timeout comes first wins; the other is a no-op.
+        final ScheduledFuture<?> timeout = connectedNode.getScheduledExecutorService().schedule(
+                new Runnable() {
                     @Override
-                    public void onFailure(RemoteException e) {
-                        if (waitingFlag) {
-                            clearWaitFor();
-                            statusCallback.onFailureCallback(e);
-                        }
+                    public void run() {
+                        future.setException(new TimeoutException("No response from "
+                                + saveSrvName + " after " + timeoutMillis + " ms"));
                     }
-                });
-                if(!waitFor(10)){
-                    statusCallback.timeoutCallback();
-                }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
+                attempts.cancel(false);
             }
-
-		}
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
 	}
 	@Override
 	public GraphName getDefaultNodeName() {
@@ -144,6 +177,15 @@ public class MapManager extends AbstractNodeMain {
 	public void onStart(final ConnectedNode connectedNode){
 		super.onStart(connectedNode);
         this.connectedNode = connectedNode;
+        retryScheduler = new RetryScheduler(connectedNode.getScheduledExecutorService());
         saveMap();
     }
+
+    @Override
+    public void onShutdown(Node node) {
+        if (saveMapClient != null) {
+            saveMapClient.shutdown();
+            saveMapClient = null;
+        }
+    }
 }
@@ -26,9 +26,9 @@ import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.github.rosjava.android_apps.common.CameraView;
 import com.github.rosjava.android_remocons.common_tools.apps.AppParameters;
 
-import org.ros.android.view.RosImageView;
 import org.ros.android.view.visualization.RotateGestureDetector;
 import org.ros.android.view.visualization.VisualizationView;
 import org.ros.android.view.visualization.layer.CameraControlLayer;
@@ -49,7 +49,7 @@ public class ViewControlLayer extends CameraControlLayer {
     private RotateGestureDetector rotateGestureDetector;
     private ScaleGestureDetector zoomGestureDetector;
 
-    private RosImageView<sensor_msgs.CompressedImage> cameraView;
+    private CameraView cameraView;
     private VisualizationView mapView;
     private ViewGroup mainLayout;
     private ViewGroup sideLayout;
@@ -65,7 +65,7 @@ public class ViewControlLayer extends CameraControlLayer {
 
     public ViewControlLayer(final Context context,
                             final ExecutorService executorService,
-                            final RosImageView<sensor_msgs.CompressedImage> cameraView,
+                            final CameraView cameraView,
                             final VisualizationView mapView,
                             final ViewGroup mainLayout,
                             final ViewGroup sideLayout,
@@ -155,6 +155,8 @@ public class ViewControlLayer extends CameraControlLayer {
         mapView.getCamera().jumpToFrame(robotFrame);
         mapView.setClickable(viewMode != ViewMode.MAP);
         cameraView.setClickable(viewMode != ViewMode.CAMERA);
+        // Only the main pane gets the full camera stream.
+        cameraView.setMinimized(viewMode == ViewMode.MAP);
 
     }
 
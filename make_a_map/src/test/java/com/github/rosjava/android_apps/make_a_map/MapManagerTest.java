@@ -0,0 +1,248 @@
+package com.github.rosjava.android_apps.make_a_map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ros.exception.ServiceNotFoundException;
+import org.ros.node.ConnectedNode;
+import org.ros.node.service.ServiceClient;
+import org.ros.node.service.ServiceResponseListener;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import world_canvas_msgs.SaveMapRequest;
+import world_canvas_msgs.SaveMapResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link MapManager#saveMap()} reports back, against a node whose save service
+ * answers at once, never answers, or is not advertised for the first attempts.
+ */
+public class MapManagerTest {
+
+    private static final String SRV_NAME = "/save_map";
+    private static final String EXECUTOR_THREAD = "node-executor";
+
+    private enum Server { ANSWERS, SILENT }
+
+    private ScheduledExecutorService executorService;
+    private Server server = Server.ANSWERS;
+    private int missingAttempts = 0;
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final SaveMapResponse response = stub(SaveMapResponse.class);
+    private volatile String requestedName;
+    private volatile long answeredNanos;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile String outcome;
+    private volatile Object outcomeValue;
+    private volatile Thread outcomeThread;
+    private volatile long outcomeNanos;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, EXECUTOR_THREAD);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void successReachesSuccessCallback() throws Exception {
+        MapManager mapManager = newMapManager();
+        mapManager.setMapName("office");
+        mapManager.onStart(newNode());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("success", outcome);
+        assertSame(response, outcomeValue);
+        assertEquals("office", requestedName);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void silentServiceTimesOut() throws Exception {
+        server = Server.SILENT;
+        MapManager mapManager = newMapManager();
+        mapManager.setTimeout(200, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        mapManager.onStart(newNode());
+        long startMillis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long elapsedMillis = (outcomeNanos - start) / 1000000;
+        assertEquals("timeout", outcome);
+        assertTrue("Timed out after " + elapsedMillis + " ms", elapsedMillis >= 200);
+        assertTrue("Timed out after " + elapsedMillis + " ms", elapsedMillis < 2000);
+        // Waiting for the answer must not hold the caller.
+        assertTrue("onStart took " + startMillis + " ms", startMillis < 100);
+    }
+
+    @Test
+    public void missingServiceIsRetried() throws Exception {
+        missingAttempts = 2;
+        MapManager mapManager = newMapManager();
+        mapManager.onStart(newNode());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("success", outcome);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void acknowledgementIsPromptAndOnNodeThread() throws Exception {
+        MapManager mapManager = newMapManager();
+        mapManager.onStart(newNode());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long latencyMicros = (outcomeNanos - answeredNanos) / 1000;
+        System.out.println("save_map acknowledged " + latencyMicros + " us after the response");
+        assertTrue("Acknowledged after " + latencyMicros + " us", latencyMicros < 50000);
+        assertNotNull(outcomeThread);
+        assertEquals(EXECUTOR_THREAD, outcomeThread.getName());
+    }
+
+    @Test
+    public void saveBeforeStartFails() throws Exception {
+        MapManager mapManager = newMapManager();
+        assertTrue(mapManager.saveMap().isDone());
+        assertEquals("failure", outcome);
+        assertTrue(outcomeValue instanceof IllegalStateException);
+        assertNull(requestedName);
+    }
+
+    private MapManager newMapManager() {
+        MapManager mapManager = new MapManager(SRV_NAME);
+        mapManager.registerCallback(new MapManager.StatusCallback() {
+            @Override
+            public void timeoutCallback() {
+                finish("timeout", null);
+            }
+
+            @Override
+            public void onSuccessCallback(SaveMapResponse arg0) {
+                finish("success", arg0);
+            }
+
+            @Override
+            public void onFailureCallback(Exception e) {
+                finish("failure", e);
+            }
+        });
+        return mapManager;
+    }
+
+    private void finish(String outcome, Object value) {
+        outcomeNanos = System.nanoTime();
+        outcomeThread = Thread.currentThread();
+        outcomeValue = value;
+        this.outcome = outcome;
+        done.countDown();
+    }
+
+    private ConnectedNode newNode() {
+        return (ConnectedNode) Proxy.newProxyInstance(ConnectedNode.class.getClassLoader(),
+                new Class<?>[] { ConnectedNode.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws ServiceNotFoundException {
+                        if (method.getName().equals("getScheduledExecutorService")) {
+                            return executorService;
+                        }
+                        if (method.getName().equals("newServiceClient")) {
+                            assertEquals(SRV_NAME, args[0]);
+                            if (attempts.incrementAndGet() <= missingAttempts) {
+                                throw new ServiceNotFoundException("No such service " + args[0]);
+                            }
+                            return newClient();
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private Object newClient() {
+        return Proxy.newProxyInstance(ServiceClient.class.getClassLoader(),
+                new Class<?>[] { ServiceClient.class }, new InvocationHandler() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("newMessage")) {
+                            return stub(SaveMapRequest.class);
+                        }
+                        if (name.equals("call")) {
+                            requestedName = ((SaveMapRequest) args[0]).getMapName();
+                            final ServiceResponseListener<SaveMapResponse> listener =
+                                    (ServiceResponseListener<SaveMapResponse>) args[1];
+                            if (server == Server.ANSWERS) {
+                                executorService.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        answeredNanos = System.nanoTime();
+                                        listener.onSuccess(response);
+                                    }
+                                });
+                            }
+                            return null;
+                        }
+                        if (name.equals("shutdown")) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    /**
+     * @return a message that keeps the one string field tests set on it
+     */
+    private static <T> T stub(final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    private Object mapName;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("setMapName")) {
+                            mapName = args[0];
+                            return null;
+                        }
+                        if (name.equals("getMapName")) {
+                            return mapName;
+                        }
+                        if (name.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (name.equals("toString")) {
+                            return type.getSimpleName();
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                }));
+    }
+}
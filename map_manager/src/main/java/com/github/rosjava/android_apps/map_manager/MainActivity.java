@@ -17,11 +17,15 @@
 package com.github.rosjava.android_apps.map_manager;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Display;
 import android.view.KeyEvent;
@@ -36,24 +40,24 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
 
+import com.github.rosjava.android_apps.common.MapCatalogIndex;
+import com.github.rosjava.android_apps.common.NodeMainHost;
+import com.github.rosjava.android_apps.common.TiledGridLayer;
 import com.github.rosjava.android_remocons.common_tools.apps.RosAppActivity;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
 import org.ros.address.InetAddressFactory;
 import org.ros.android.view.visualization.VisualizationView;
 import org.ros.android.view.visualization.layer.CameraControlLayer;
 import org.ros.android.view.visualization.layer.CameraControlListener;
 import org.ros.android.view.visualization.layer.Layer;
-import org.ros.android.view.visualization.layer.OccupancyGridLayer;
-import org.ros.exception.RemoteException;
 import org.ros.namespace.NameResolver;
 import org.ros.node.NodeConfiguration;
 import org.ros.node.NodeMainExecutor;
-import org.ros.node.service.ServiceResponseListener;
 
-import java.text.DateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
 
 import world_canvas_msgs.DeleteMapResponse;
@@ -69,27 +73,35 @@ import world_canvas_msgs.RenameMapResponse;
 public class MainActivity extends RosAppActivity {
 
 	private static final int NAME_MAP_DIALOG_ID = 0;
+	private static final int STOP_APP_ITEM_ID = 0;
+	private static final int SORT_ITEM_ID_BASE = 1;
+	private static final int[] SORT_ITEM_TITLES = { R.string.sort_server, R.string.sort_newest,
+			R.string.sort_oldest, R.string.sort_name };
 
 	private NodeConfiguration nodeConfiguration;
+	private NodeMainHost nodeMainHost;
+	private MapManager mapManager;
 	private NodeMainExecutor nodeMainExecutor;
 
 	private VisualizationView mapView;
 	private Button backButton;
 	private Button renameButton;
 	private ListView mapListView;
-	private ArrayList<MapListEntry> mapList = new ArrayList<MapListEntry>();
+	private EditText mapSearchField;
+	private MapCatalog mapCatalog = new MapCatalog();
+	private MapListArrayAdapter mapListAdapter;
+	private MapThumbnailCache thumbnailCache;
+	private MapPreviewPublisher mapPreviewPublisher;
 	public OnTouchListener gestureListener;
 	public OnLongClickListener longClickListener;
-	private int radioFocus = 0;
-	private int viewPosition = -1;
-	private int targetPosition;
+	private String targetMapId;
 	private boolean startMapManager = true;
 	private boolean showDeleteDialog = false;
 	private boolean visibleMapView = true;
 	private ProgressDialog waitingDialog;
 	private AlertDialog errorDialog;
     private CameraControlLayer cameraControlLayer;
-	private OccupancyGridLayer occupancyGridLayer;
+	private TiledGridLayer occupancyGridLayer;
 
 	public MainActivity() {
 		// The RosActivity constructor configures the notification title and
@@ -114,12 +126,46 @@ public class MainActivity extends RosAppActivity {
 		final Display display = windowManager.getDefaultDisplay();
 
 		mapListView = (ListView) findViewById(R.id.map_list);
+		mapSearchField = (EditText) findViewById(R.id.map_search);
 		mapView = (VisualizationView) findViewById(R.id.map_view);
 		backButton = (Button) findViewById(R.id.back_button);
 		renameButton = (Button) findViewById(R.id.rename_button);
         cameraControlLayer = new CameraControlLayer();
         mapView.onCreate(Lists.<Layer>newArrayList(cameraControlLayer));
 
+		thumbnailCache = new MapThumbnailCache(getCacheDir());
+		thumbnailCache.setListener(new MapThumbnailCache.Listener() {
+			@Override
+			public void onThumbnailReady(final String mapId) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						int position = mapCatalog.indexOf(mapId);
+						if (position != -1 && mapListAdapter != null) {
+							mapListAdapter.refreshRows(mapListView,
+									Collections.singletonList(position));
+						}
+					}
+				});
+			}
+		});
+
+		mapCatalog.setListener(new MapCatalog.Listener() {
+			@Override
+			public void onRowsChanged(List<Integer> positions) {
+				if (mapListAdapter != null) {
+					mapListAdapter.refreshRows(mapListView, positions);
+				}
+			}
+
+			@Override
+			public void onStructureChanged() {
+				if (mapListAdapter != null) {
+					mapListAdapter.notifyDataSetChanged();
+				}
+			}
+		});
+
 		backButton.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
@@ -127,11 +173,27 @@ public class MainActivity extends RosAppActivity {
 			}
 		});
 
+		mapSearchField.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				// Answered from the local index, no service call per keystroke.
+				mapCatalog.setQuery(s.toString());
+			}
+		});
+
 		renameButton.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (radioFocus != -1) {
-					targetPosition = radioFocus;
+				if (mapCatalog.getSelectedPosition() != -1) {
+					targetMapId = mapCatalog.get(mapCatalog.getSelectedPosition()).getMapId();
 					showDialog(NAME_MAP_DIALOG_ID);
 				}
 			}
@@ -186,7 +248,8 @@ public class MainActivity extends RosAppActivity {
 
 			@Override
 			public boolean onLongClick(View v) {
-				targetPosition = v.getId();
+				// Rows get reordered while the dialog is up; keep hold of the map, not the row.
+				targetMapId = mapCatalog.get(v.getId()).getMapId();
 				showDialog(NAME_MAP_DIALOG_ID);
 				return false;
 			}
@@ -205,6 +268,12 @@ public class MainActivity extends RosAppActivity {
 		this.nodeMainExecutor = nodeMainExecutor;
 		nodeConfiguration = NodeConfiguration.newPublic(InetAddressFactory
 				.newNonLoopback().getHostAddress(), getMasterUri());
+		// All widgets and service calls share one node: one master registration, one set of sockets.
+		nodeMainHost = new NodeMainHost("android/map_manager");
+		// One long-lived service client for the whole session, reusing its connections.
+		mapManager = new MapManager();
+		mapManager.setNameResolver(getMasterNameSpace());
+		nodeMainHost.addNodeMain(mapManager);
 
         NameResolver appNameSpace = getMasterNameSpace();
         String mapTopic = remaps.get(getString(R.string.map_topic));
@@ -221,35 +290,65 @@ public class MainActivity extends RosAppActivity {
             public void onRotate(float focusX, float focusY, double deltaAngle) {}
 
         });
-        occupancyGridLayer = new OccupancyGridLayer(appNameSpace.resolve(mapTopic).toString());
+		// Maps are previewed from a local copy on a private topic, leaving the robot's map
+		// topic alone; it is only read to capture maps the device has not seen yet.
+		mapPreviewPublisher = new MapPreviewPublisher(appNameSpace.resolve(mapTopic).toString(),
+				new MapGridCache(getCacheDir(), ((ActivityManager) getSystemService(
+						Context.ACTIVITY_SERVICE)).getMemoryClass()), thumbnailCache);
+		nodeMainHost.addNodeMain(mapPreviewPublisher);
+        occupancyGridLayer = new TiledGridLayer(MapPreviewPublisher.PREVIEW_TOPIC);
         mapView.addLayer(occupancyGridLayer);
 
-		nodeMainExecutor.execute(mapView, nodeConfiguration.setNodeName("android/map_view"));
+		nodeMainHost.addNodeMain(mapView);
+		nodeMainExecutor.execute(nodeMainHost,
+				nodeConfiguration.setNodeName(nodeMainHost.getDefaultNodeName()));
 		updateMapList();
 	}
 
 	protected void updateMapView(int position) {
-		radioFocus = position;
-		updateMapView(MainActivity.this.mapList.get(position));
+		mapCatalog.select(position);
+		updateMapView(mapCatalog.get(position));
+	}
+
+	private void updateMapView(final MapListEntry map) {
+		Futures.addCallback(mapPreviewPublisher.showCached(map.getMapId()),
+				new FutureCallback<Boolean>() {
+					@Override
+					public void onSuccess(Boolean shown) {
+						if (!shown) {
+							fetchMap(map);
+						}
+					}
+
+					@Override
+					public void onFailure(Throwable e) {
+						fetchMap(map);
+					}
+				});
 	}
 
-	private void updateMapView(MapListEntry map) {
+	/**
+	 * First preview of a map: have the map store publish it once so the preview publisher
+	 * can keep a copy.
+	 */
+	private void fetchMap(MapListEntry map) {
 
-		MapManager mapManager = new MapManager();
-        mapManager.setNameResolver(getMasterNameSpace());
-		mapManager.setFunction("publish");
-		mapManager.setMapId(map.getMapId());
 		safeShowWaitingDialog("Loading...");
+		final String mapId = map.getMapId();
+		mapPreviewPublisher.expect(mapId);
 
-		mapManager.setPublishService(new ServiceResponseListener<PublishMapResponse>() {
+		Futures.addCallback(mapManager.publishMap(mapId),
+				new FutureCallback<PublishMapResponse>() {
 					@Override
-					public void onFailure(RemoteException e) {
+					public void onFailure(Throwable e) {
+						mapPreviewPublisher.cancel(mapId);
 						e.printStackTrace();
 						safeDismissWaitingDialog();
 						safeShowErrorDialog("Error loading map: " + e.toString());
 					}
 					@Override
 					public void onSuccess(PublishMapResponse message) {
+						mapPreviewPublisher.confirm(mapId);
 						safeDismissWaitingDialog();
                         // disabling temporarily until testing
                         // this api got deprecated
@@ -261,65 +360,35 @@ public class MainActivity extends RosAppActivity {
 					}
 				});
 
-		nodeMainExecutor.execute(mapManager,
-				nodeConfiguration.setNodeName("android/publish_map"));
-
 	}
 
 	private void updateMapListGui(final List<MapListEntry> list) {
-
-		final ArrayList<MapListData> availableMapNames = new ArrayList<MapListData>();
-		for (int i = 0; i < list.size(); i++) {
-			String displayString;
-			String name = list.get(i).getName();
-			Date creationDate = new Date(list.get(i).getDate() * 1000);
-			String dateTime = DateFormat.getDateTimeInstance(DateFormat.MEDIUM,
-					DateFormat.SHORT).format(creationDate);
-			if (name != null && !name.equals("")) {
-				displayString = name + " " + dateTime;
-			} else {
-				displayString = dateTime;
-			}
-			MapListData mapListData = new MapListData();
-			mapListData.setText(displayString);
-			if (i == radioFocus) {
-				mapListData.setChecked(true);
-			} else
-				mapListData.setChecked(false);
-			mapListData.setId(i);
-			availableMapNames.add(mapListData);
-		}
-
-		mapList = (ArrayList<MapListEntry>) list;
-
-		if (startMapManager) {
-			startMapManager = false;
-			updateMapView(0);
-		}
-
 		runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
-				final MapListArrayAdapter ad = new MapListArrayAdapter(
-						MainActivity.this, 0, availableMapNames,
-						gestureListener,longClickListener);
-				mapListView.setAdapter(ad);
-				if (viewPosition != -1) {
-					mapListView.setSelection(viewPosition);
+				mapCatalog.reconcile(list);
+				if (mapListAdapter == null) {
+					// Created once; later changes reach the list through the catalog's
+					// listener, so scroll position and untouched rows are kept.
+					mapListAdapter = new MapListArrayAdapter(MainActivity.this, 0,
+							mapCatalog.getRows(), gestureListener, longClickListener);
+					mapListAdapter.setThumbnailCache(thumbnailCache);
+					mapListView.setAdapter(mapListAdapter);
+				}
+				if (startMapManager && mapCatalog.size() > 0) {
+					startMapManager = false;
+					updateMapView(0);
 				}
-
 			}
 		});
 	}
 
 	private void updateMapList() {
 
-		MapManager mapManager = new MapManager();
-        mapManager.setNameResolver(getMasterNameSpace());
-		mapManager.setFunction("list");
 		safeShowWaitingDialog("Waiting for maps...");
 
-		mapManager.setListService(new ServiceResponseListener<ListMapsResponse>() {
+		Futures.addCallback(mapManager.listMaps(),
+				new FutureCallback<ListMapsResponse>() {
 					@Override
 					public void onSuccess(ListMapsResponse message) {
 						Log.i("MapManager", "readAvailableMapList() Success");
@@ -328,32 +397,40 @@ public class MainActivity extends RosAppActivity {
 					}
 
 					@Override
-					public void onFailure(RemoteException arg0) {
+					public void onFailure(Throwable arg0) {
 						Log.i("MapManager", "readAvailableMapList() Failure");
 						safeDismissWaitingDialog();
 						
 					}
 				});
 
-		nodeMainExecutor.execute(mapManager,
-				nodeConfiguration.setNodeName("android/list_maps"));
+	}
 
+	/**
+	 * Re-read the map list without blocking the user, to pick up what the server made of
+	 * an edit, and anything other clients changed.
+	 */
+	private void reconcileMapList() {
+		Futures.addCallback(mapManager.listMaps(),
+				new FutureCallback<ListMapsResponse>() {
+					@Override
+					public void onSuccess(ListMapsResponse message) {
+						updateMapListGui(message.getMapList());
+					}
+
+					@Override
+					public void onFailure(Throwable e) {
+						Log.w("MapManager", "Map list reconcile failed: " + e);
+					}
+				});
 	}
 
-	public void deleteMap(int position) {
-		final String id = mapList.get(position).getMapId();
-		viewPosition = mapListView.getFirstVisiblePosition();
+	public void deleteMap(final int position) {
+		final String id = mapCatalog.get(position).getMapId();
 
 		if (id == null) {
 			return;
 		}
-		final int radioFocusRelation;
-		if (position == radioFocus) {
-			radioFocusRelation = 0;
-		} else if (position < radioFocus) {
-			radioFocusRelation = 1;
-		} else
-			radioFocusRelation = -1;
 
 		AlertDialog.Builder dialog = new AlertDialog.Builder(this);
 		dialog.setTitle("Are You Sure?");
@@ -362,72 +439,47 @@ public class MainActivity extends RosAppActivity {
 			@Override
 			public void onClick(DialogInterface dlog, int i) {
 				dlog.dismiss();
-				safeShowWaitingDialog("Deleting...");
-				try {
-					MapManager mapManager = new MapManager();
-                    mapManager.setNameResolver(getMasterNameSpace());
-					mapManager.setFunction("delete");
-					mapManager.setMapId(id);
-
-					mapManager.setDeleteService(new ServiceResponseListener<DeleteMapResponse>() {
-
-								@Override
-								public void onFailure(RemoteException e) {
-									showDeleteDialog = false;
-									e.printStackTrace();
-
-								}
-
-								@Override
-								public void onSuccess(DeleteMapResponse arg0) {
+				showDeleteDialog = false;
+				// Take the row out right away; put it back if the server says no. By id: the
+				// list may have been reconciled while the dialog was open.
+				final MapCatalog.Removal removal = mapCatalog.remove(id);
+                // disabling temporarily until testing
+                // this api got deprecated
+                // see https://github.com/rosjava/android_apps/issues/42
+				//if (mapCatalog.getSelectedPosition() == -1) {
+				//	mapView.hideLayer(occupancyGridLayer);
+				//	visibleMapView = false;
+				//}
+				Futures.addCallback(mapManager.deleteMap(id),
+						new FutureCallback<DeleteMapResponse>() {
 
-									if (viewPosition != 0) {
-										viewPosition += 1;
-									}
-									switch (radioFocusRelation) {
-									case 0:
-                                        // disabling temporarily until testing
-                                        // this api got deprecated
-                                        // see https://github.com/rosjava/android_apps/issues/42
-										//mapView.hideLayer(occupancyGridLayer);
-										//visibleMapView = false;
-										radioFocus = -1;
-										break;
-									case 1:
-										radioFocus -= 1;
-										break;
+							@Override
+							public void onFailure(final Throwable e) {
+								e.printStackTrace();
+								runOnUiThread(new Runnable() {
+									public void run() {
+										mapCatalog.restore(removal);
 									}
-									showDeleteDialog = false;
-
-									MainActivity.this
-											.runOnUiThread(new Runnable() {
-												public void run() {
-													safeDismissWaitingDialog();
-													updateMapList();
-												}
-											});
-								}
-							});
-
-					nodeMainExecutor.execute(mapManager,
-							nodeConfiguration.setNodeName("android/delete_map"));
+								});
+								safeShowErrorDialog("Error during map delete: "
+										+ e.toString());
+							}
 
-				} catch (Exception e) {
-					e.printStackTrace();
-					safeShowErrorDialog("Error during map delete: "
-							+ e.toString());
-				}
+							@Override
+							public void onSuccess(DeleteMapResponse arg0) {
+								mapPreviewPublisher.forget(id);
+								reconcileMapList();
+							}
+						});
 			}
 		});
 
 		dialog.setNegativeButton("No", new DialogInterface.OnClickListener() {
 			@Override
 			public void onClick(DialogInterface dlog, int i) {
-				if (viewPosition != 0) {
-					viewPosition += 1;
-				}
 				showDeleteDialog = false;
-				updateMapList();
+				// Rebinding resets the swiped row.
+				mapListAdapter.notifyDataSetChanged();
 				dlog.dismiss();
 			}
 		});
@@ -440,15 +492,20 @@ public class MainActivity extends RosAppActivity {
 		Button button;
 		switch (id) {
 		case NAME_MAP_DIALOG_ID:
-			viewPosition = mapListView.getFirstVisiblePosition();
+			final String mapId = targetMapId;
+			int position = mapId == null ? -1 : mapCatalog.indexOf(mapId);
+			if (position == -1) {
+				// The map went away before the dialog came up.
+				dialog = null;
+				break;
+			}
 			dialog = new Dialog(this);
 			dialog.setContentView(R.layout.name_map_dialog);
 			dialog.setTitle("Rename Map");
 
-			final String targetMapId = mapList.get(targetPosition).getMapId();
 			final EditText nameField = (EditText) dialog
 					.findViewById(R.id.name_editor);
-			nameField.setText(mapList.get(targetPosition).getName());
+			nameField.setText(mapCatalog.get(position).getName());
 			nameField.setOnKeyListener(new View.OnKeyListener() {
 				@Override
 				public boolean onKey(final View view, int keyCode,
@@ -457,46 +514,34 @@ public class MainActivity extends RosAppActivity {
 							&& keyCode == KeyEvent.KEYCODE_ENTER) {
 						String newName = nameField.getText().toString();
 						if (newName != null && newName.length() > 0) {
-							safeShowWaitingDialog("Waiting for rename...");
-							try {
-								MapManager mapManager = new MapManager();
-                                mapManager.setNameResolver(getMasterNameSpace());
-								mapManager.setFunction("rename");
-								mapManager.setMapId(targetMapId);
-								mapManager.setMapName(newName);
-
-								mapManager.setRenameService(
-                                        new ServiceResponseListener<RenameMapResponse>() {
-
-											@Override
-											public void onFailure(
-													RemoteException e) {
-												e.printStackTrace();
-												safeShowErrorDialog("Error during rename: "
-														+ e.toString());
-											}
-
-											@Override
-											public void onSuccess(
-													RenameMapResponse arg0) {
-												MainActivity.this
-														.runOnUiThread(new Runnable() {
-															public void run() {
-																safeDismissWaitingDialog();
-																updateMapList();
-															}
-														});
-											}
-										});
-								nodeMainExecutor.execute(mapManager,
-										nodeConfiguration
-												.setNodeName("android/rename_map"));
-
-							} catch (Exception e) {
-								e.printStackTrace();
-								safeShowErrorDialog("Error during rename: "
-										+ e.toString());
-							}
+							// Show the new name right away; revert it if the server says no.
+							final String previousName = mapCatalog.rename(mapId, newName);
+							Futures.addCallback(
+									mapManager.renameMap(mapId, newName),
+									new FutureCallback<RenameMapResponse>() {
+
+										@Override
+										public void onFailure(
+												Throwable e) {
+											e.printStackTrace();
+											runOnUiThread(new Runnable() {
+												public void run() {
+													// Nothing to undo if the map was gone already.
+													if (previousName != null) {
+														mapCatalog.rename(mapId, previousName);
+													}
+												}
+											});
+											safeShowErrorDialog("Error during rename: "
+													+ e.toString());
+										}
+
+										@Override
+										public void onSuccess(
+												RenameMapResponse arg0) {
+											reconcileMapList();
+										}
+									});
 						}
 						removeDialog(NAME_MAP_DIALOG_ID);
 						return true;
@@ -586,17 +631,33 @@ public class MainActivity extends RosAppActivity {
 		});
 	}
 
+	@Override
+	protected void onDestroy() {
+		if (thumbnailCache != null) {
+			thumbnailCache.shutdown();
+		}
+		super.onDestroy();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
-		menu.add(0, 0, 0, R.string.stop_app);
+		menu.add(0, STOP_APP_ITEM_ID, 0, R.string.stop_app);
+		for (int i = 0; i < SORT_ITEM_TITLES.length; i++) {
+			menu.add(0, SORT_ITEM_ID_BASE + i, 0, SORT_ITEM_TITLES[i]);
+		}
 		return super.onCreateOptionsMenu(menu);
 	}
 
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		super.onOptionsItemSelected(item);
+		int sortIndex = item.getItemId() - SORT_ITEM_ID_BASE;
+		if (sortIndex >= 0 && sortIndex < SORT_ITEM_TITLES.length) {
+			mapCatalog.setSortOrder(MapCatalogIndex.SortOrder.values()[sortIndex]);
+			return true;
+		}
 		switch (item.getItemId()) {
-		case 0:
+		case STOP_APP_ITEM_ID:
 			onDestroy();
 			break;
 		}
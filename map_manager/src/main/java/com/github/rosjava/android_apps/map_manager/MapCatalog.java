@@ -0,0 +1,242 @@
+package com.github.rosjava.android_apps.map_manager;
+
+import com.github.rosjava.android_apps.common.MapCatalogIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import world_canvas_msgs.MapListEntry;
+
+/**
+ * Local copy of the map store's list, backing the map list view, optionally filtered by a
+ * search query and sorted; positions always refer to the rows shown.
+ *
+ * Renames and deletes are applied here as soon as the user makes them and undone if the
+ * server refuses them, while a background ListMaps call reconciles with the server. Every
+ * change tells the {@link Listener} which rows it touched, so the list view rebinds only those
+ * instead of being rebuilt, and a row keeps its formatted text until its entry changes.
+ *
+ * Not thread safe: use it from the UI thread only.
+ */
+public class MapCatalog {
+
+	public interface Listener {
+		/** Only the content of the rows at these positions changed. */
+		void onRowsChanged(List<Integer> positions);
+
+		/** Rows were added, removed or reordered. */
+		void onStructureChanged();
+	}
+
+	/** What {@link #remove(String)} took out, so that {@link #restore(Removal)} can put it back. */
+	public static class Removal {
+		private final MapListEntry entry;
+
+		private Removal(MapListEntry entry) {
+			this.entry = entry;
+		}
+
+		public MapListEntry getEntry() {
+			return entry;
+		}
+	}
+
+	private final MapCatalogIndex index = new MapCatalogIndex();
+	private final List<MapListEntry> entries = new ArrayList<MapListEntry>();
+	private final List<MapListData> rows = new ArrayList<MapListData>();
+	private final Map<String, MapListData> rowsById = new HashMap<String, MapListData>();
+	private String query = "";
+	private MapCatalogIndex.SortOrder sortOrder = MapCatalogIndex.SortOrder.SERVER;
+	private Listener listener;
+	private String selectedMapId;
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * The rows shown by the list view. The list is updated in place, so an adapter can keep
+	 * a reference to it.
+	 */
+	public List<MapListData> getRows() {
+		return rows;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public MapListEntry get(int position) {
+		return entries.get(position);
+	}
+
+	public int indexOf(String mapId) {
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).getMapId().equals(mapId)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getSelectedPosition() {
+		return selectedMapId == null ? -1 : indexOf(selectedMapId);
+	}
+
+	public void select(int position) {
+		List<Integer> changed = new ArrayList<Integer>();
+		int previous = getSelectedPosition();
+		if (previous != -1) {
+			rows.get(previous).setChecked(false);
+			changed.add(previous);
+		}
+		selectedMapId = entries.get(position).getMapId();
+		rows.get(position).setChecked(true);
+		changed.add(position);
+		notifyRowsChanged(changed);
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Show only the maps matching {@code query}, see {@link MapCatalogIndex#query}.
+	 */
+	public void setQuery(String query) {
+		this.query = query == null ? "" : query;
+		refresh();
+	}
+
+	public MapCatalogIndex.SortOrder getSortOrder() {
+		return sortOrder;
+	}
+
+	public void setSortOrder(MapCatalogIndex.SortOrder sortOrder) {
+		this.sortOrder = sortOrder;
+		refresh();
+	}
+
+	/**
+	 * Bring the catalog in line with a fresh ListMaps response. Rows of unchanged entries are
+	 * kept as they are; only new or modified entries are formatted.
+	 */
+	public void reconcile(List<MapListEntry> serverEntries) {
+		index.build(serverEntries);
+		refresh();
+	}
+
+	/**
+	 * Optimistically take a map out of the list, e.g. while its deletion is in flight. Takes
+	 * the id rather than a position, since positions move whenever the list is reconciled.
+	 *
+	 * @return null if the map is not in the catalog anymore
+	 */
+	public Removal remove(String mapId) {
+		MapListEntry entry = index.get(mapId);
+		if (entry == null) {
+			return null;
+		}
+		index.remove(mapId);
+		rowsById.remove(entry.getMapId());
+		if (entry.getMapId().equals(selectedMapId)) {
+			selectedMapId = null;
+		}
+		refresh();
+		return new Removal(entry);
+	}
+
+	/**
+	 * Undo a {@link #remove(String)} the server refused.
+	 */
+	public void restore(Removal removal) {
+		if (removal == null || index.get(removal.entry.getMapId()) != null) {
+			return;
+		}
+		index.update(removal.entry);
+		refresh();
+	}
+
+	/**
+	 * Optimistically rename a map.
+	 *
+	 * @return the previous name, for undoing the rename if the server refuses it; null if the
+	 *     map is not in the catalog, and so was not renamed
+	 */
+	public String rename(String mapId, String name) {
+		MapListEntry entry = index.get(mapId);
+		if (entry == null) {
+			return null;
+		}
+		String previousName = entry.getName();
+		entry.setName(name);
+		index.update(entry);
+		refresh();
+		return previousName;
+	}
+
+	/**
+	 * Recompute the visible rows from the index and report the difference: only rows whose
+	 * text changed if the sequence of maps is the same, otherwise a structural change.
+	 */
+	private void refresh() {
+		List<MapListEntry> newEntries = index.query(query, sortOrder);
+		List<MapListData> newRows = new ArrayList<MapListData>(newEntries.size());
+		Map<String, MapListData> newRowsById = new HashMap<String, MapListData>();
+		List<Integer> changed = new ArrayList<Integer>();
+		boolean structureChanged = newEntries.size() != entries.size();
+		boolean selectionFound = false;
+		for (int i = 0; i < newEntries.size(); i++) {
+			MapListEntry entry = newEntries.get(i);
+			String mapId = entry.getMapId();
+			String text = index.getDisplayString(mapId);
+			MapListData row = rowsById.get(mapId);
+			if (row == null) {
+				row = new MapListData();
+				row.setMapId(mapId);
+				row.setText(text);
+			} else if (!text.equals(row.getText())) {
+				row.setText(text);
+				changed.add(i);
+			}
+			if (!structureChanged && !entries.get(i).getMapId().equals(mapId)) {
+				structureChanged = true;
+			}
+			row.setId(i);
+			boolean selected = mapId.equals(selectedMapId);
+			selectionFound |= selected;
+			row.setChecked(selected);
+			newRows.add(row);
+			newRowsById.put(mapId, row);
+		}
+		if (!selectionFound && selectedMapId != null && index.get(selectedMapId) == null) {
+			// Gone from the store, not just filtered out.
+			selectedMapId = null;
+		}
+		entries.clear();
+		entries.addAll(newEntries);
+		rows.clear();
+		rows.addAll(newRows);
+		rowsById.clear();
+		rowsById.putAll(newRowsById);
+		if (structureChanged) {
+			notifyStructureChanged();
+		} else if (!changed.isEmpty()) {
+			notifyRowsChanged(changed);
+		}
+	}
+
+	private void notifyRowsChanged(List<Integer> positions) {
+		if (listener != null) {
+			listener.onRowsChanged(positions);
+		}
+	}
+
+	private void notifyStructureChanged() {
+		if (listener != null) {
+			listener.onStructureChanged();
+		}
+	}
+}
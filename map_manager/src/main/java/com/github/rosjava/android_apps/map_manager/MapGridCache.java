@@ -0,0 +1,171 @@
+package com.github.rosjava.android_apps.map_manager;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.ros.message.MessageFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import geometry_msgs.Pose;
+import nav_msgs.OccupancyGrid;
+
+/**
+ * Occupancy grids of stored maps, kept on the device so a map only has to be transferred once.
+ *
+ * The most recent grids stay in a memory LRU bounded by their cell count, at a byte per cell
+ * a sixteenth of the app's heap: a small heap keeps about one map, a large one a few, and a
+ * grid too large for it is only served from disk. Every grid is also written gzipped to a
+ * file per map id in the app's cache directory, where occupancy grids shrink by an order of
+ * magnitude. Only the fields needed to draw the map are stored: frame,
+ * resolution, size, origin and cells.
+ *
+ * Disk access blocks; call {@link #get} and {@link #put} from a background thread.
+ */
+public class MapGridCache {
+
+	private static final int HEAP_FRACTION = 16;
+	private static final int FORMAT_VERSION = 1;
+	private static final String TAG = "MapGridCache";
+
+	private final LruCache<String, OccupancyGrid> memoryCache;
+	private final File directory;
+
+	/**
+	 * @param memoryClass the app's heap limit in megabytes, see
+	 *     {@link android.app.ActivityManager#getMemoryClass()}
+	 */
+	public MapGridCache(File cacheDirectory, int memoryClass) {
+		directory = new File(cacheDirectory, "map_grids");
+		memoryCache = new LruCache<String, OccupancyGrid>(
+				Math.max(1, memoryClass * 1024 * 1024 / HEAP_FRACTION)) {
+			@Override
+			protected int sizeOf(String mapId, OccupancyGrid grid) {
+				return Math.max(1, grid.getInfo().getWidth() * grid.getInfo().getHeight());
+			}
+		};
+	}
+
+	/**
+	 * The grid of {@code mapId}, from memory or disk, or null if it was never stored.
+	 *
+	 * @param messageFactory makes the returned message when it comes from disk
+	 */
+	public OccupancyGrid get(String mapId, MessageFactory messageFactory) {
+		OccupancyGrid grid = memoryCache.get(mapId);
+		if (grid != null) {
+			return grid;
+		}
+		File file = fileFor(mapId);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			grid = read(file, messageFactory);
+		} catch (IOException e) {
+			Log.w(TAG, "Dropping unreadable grid of " + mapId, e);
+			file.delete();
+			return null;
+		}
+		memoryCache.put(mapId, grid);
+		return grid;
+	}
+
+	public void put(String mapId, OccupancyGrid grid) {
+		memoryCache.put(mapId, grid);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			return;
+		}
+		File file = fileFor(mapId);
+		File temporary = new File(directory, file.getName() + ".tmp");
+		try {
+			write(temporary, grid);
+			if (!temporary.renameTo(file)) {
+				temporary.delete();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not store grid of " + mapId, e);
+			temporary.delete();
+		}
+	}
+
+	public void remove(String mapId) {
+		memoryCache.remove(mapId);
+		fileFor(mapId).delete();
+	}
+
+	private static void write(File file, OccupancyGrid grid) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			Pose origin = grid.getInfo().getOrigin();
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(grid.getHeader().getFrameId());
+			out.writeFloat(grid.getInfo().getResolution());
+			out.writeInt(grid.getInfo().getWidth());
+			out.writeInt(grid.getInfo().getHeight());
+			out.writeDouble(origin.getPosition().getX());
+			out.writeDouble(origin.getPosition().getY());
+			out.writeDouble(origin.getPosition().getZ());
+			out.writeDouble(origin.getOrientation().getX());
+			out.writeDouble(origin.getOrientation().getY());
+			out.writeDouble(origin.getOrientation().getZ());
+			out.writeDouble(origin.getOrientation().getW());
+			ChannelBuffer data = grid.getData();
+			int cells = grid.getInfo().getWidth() * grid.getInfo().getHeight();
+			byte[] buffer = new byte[64 * 1024];
+			for (int i = 0; i < cells; i += buffer.length) {
+				int length = Math.min(buffer.length, cells - i);
+				data.getBytes(data.readerIndex() + i, buffer, 0, length);
+				out.write(buffer, 0, length);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static OccupancyGrid read(File file, MessageFactory messageFactory) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unknown grid format");
+			}
+			OccupancyGrid grid = messageFactory.newFromType(OccupancyGrid._TYPE);
+			Pose origin = grid.getInfo().getOrigin();
+			grid.getHeader().setFrameId(in.readUTF());
+			grid.getInfo().setResolution(in.readFloat());
+			grid.getInfo().setWidth(in.readInt());
+			grid.getInfo().setHeight(in.readInt());
+			origin.getPosition().setX(in.readDouble());
+			origin.getPosition().setY(in.readDouble());
+			origin.getPosition().setZ(in.readDouble());
+			origin.getOrientation().setX(in.readDouble());
+			origin.getOrientation().setY(in.readDouble());
+			origin.getOrientation().setZ(in.readDouble());
+			origin.getOrientation().setW(in.readDouble());
+			byte[] cells = new byte[grid.getInfo().getWidth() * grid.getInfo().getHeight()];
+			in.readFully(cells);
+			grid.setData(ChannelBuffers.wrappedBuffer(ByteOrder.LITTLE_ENDIAN, cells));
+			return grid;
+		} finally {
+			in.close();
+		}
+	}
+
+	private File fileFor(String mapId) {
+		return new File(directory, mapId.replaceAll("[^A-Za-z0-9_-]", "_") + ".grid.gz");
+	}
+}
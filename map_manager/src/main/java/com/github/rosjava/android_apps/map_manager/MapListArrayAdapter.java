@@ -1,6 +1,7 @@
 package com.github.rosjava.android_apps.map_manager;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -8,6 +9,8 @@ import android.view.View.OnLongClickListener;
 import android.view.View.OnTouchListener;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.RadioButton;
 import android.widget.TextView;
 
@@ -16,6 +19,7 @@ import java.util.List;
 public class MapListArrayAdapter extends ArrayAdapter<MapListData> {
 
 	private class ViewHolder {
+		ImageView thumbnailView;
 		TextView textView;
 		RadioButton radioButton;
 	}
@@ -25,6 +29,7 @@ public class MapListArrayAdapter extends ArrayAdapter<MapListData> {
 	private List<MapListData> mapList = null;
 	private LayoutInflater inflator;
 	private MainActivity context;
+	private MapThumbnailCache thumbnailCache;
 
 	public MapListArrayAdapter(MainActivity context, int resourceId,
 			List<MapListData> mapList, OnTouchListener touchListener,OnLongClickListener longClickListener) {
@@ -36,6 +41,10 @@ public class MapListArrayAdapter extends ArrayAdapter<MapListData> {
 
 	}
 
+	public void setThumbnailCache(MapThumbnailCache thumbnailCache) {
+		this.thumbnailCache = thumbnailCache;
+	}
+
 	@Override
 	public MapListData getItem(int position) {
 		return mapList.get(position);
@@ -50,6 +59,8 @@ public class MapListArrayAdapter extends ArrayAdapter<MapListData> {
 					Context.LAYOUT_INFLATER_SERVICE);
 			convertView = inflator.inflate(R.layout.map_list_item, null);
 			viewHolder = new ViewHolder();
+			viewHolder.thumbnailView = (ImageView) convertView
+					.findViewById(R.id.map_list_thumbnail);
 			viewHolder.textView = (TextView) convertView
 					.findViewById(R.id.map_list_text);
 			viewHolder.radioButton = (RadioButton) convertView
@@ -60,25 +71,48 @@ public class MapListArrayAdapter extends ArrayAdapter<MapListData> {
 		}
 		final MapListData mapListData = (MapListData) getItem(position);
 		viewHolder.textView.setText(mapListData.getText());
+		// Memory only; a thumbnail still on disk shows up when the cache reports it ready.
+		Bitmap thumbnail = thumbnailCache == null ? null
+				: thumbnailCache.get(mapListData.getMapId());
+		if (thumbnail != null) {
+			viewHolder.thumbnailView.setImageBitmap(thumbnail);
+			viewHolder.thumbnailView.setVisibility(View.VISIBLE);
+		} else {
+			viewHolder.thumbnailView.setImageDrawable(null);
+			viewHolder.thumbnailView.setVisibility(View.INVISIBLE);
+		}
 		viewHolder.radioButton.setChecked(mapListData.isChecked());
 		viewHolder.radioButton.setOnClickListener(new OnClickListener() {
 
 			@Override
 			public void onClick(View view) {
-				for (int i = 0; i < mapList.size(); i++) {
-					mapList.get(i).setChecked(false);
-				}
-				mapListData.setChecked(true);
-				notifyDataSetChanged();
+				// The catalog moves the check mark and rebinds the affected rows.
 				context.updateMapView(mapListData.getId());
 
 			}
 
 		});
+		// Undo a swipe that may have been left on a recycled row.
+		convertView.setAlpha(1);
+		convertView.setPadding(0, 0, 0, 0);
 		convertView.setId(position);
 		convertView.setOnTouchListener(touchListener);
 		convertView.setOnLongClickListener(longClickListener);
 		return convertView;
 	}
 
+	/**
+	 * Rebind only the given rows, and only those currently on screen, instead of the whole
+	 * list.
+	 */
+	public void refreshRows(ListView listView, List<Integer> positions) {
+		int first = listView.getFirstVisiblePosition();
+		for (int position : positions) {
+			View child = listView.getChildAt(position - first);
+			if (child != null && position <= listView.getLastVisiblePosition()) {
+				getView(position, child, listView);
+			}
+		}
+	}
+
 }
@@ -5,6 +5,7 @@ public class MapListData {
 	private String text = null;
 	private boolean isChecked = false;
 	private int id;
+	private String mapId;
 	
 	public String getText() {
 		return text;
@@ -28,5 +29,13 @@ public class MapListData {
 	public void setChecked(boolean isChecked) {
 		this.isChecked = isChecked;
 	}
+
+	public String getMapId() {
+		return mapId;
+	}
+
+	public void setMapId(String mapId) {
+		this.mapId = mapId;
+	}
 	
 }
\ No newline at end of file
@@ -1,14 +1,32 @@
 package com.github.rosjava.android_apps.map_manager;
 
-import org.ros.exception.RosRuntimeException;
+import com.github.rosjava.android_apps.common.RetryScheduler;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.ros.exception.RemoteException;
 import org.ros.exception.ServiceNotFoundException;
 import org.ros.namespace.GraphName;
 import org.ros.namespace.NameResolver;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
 import org.ros.node.service.ServiceClient;
 import org.ros.node.service.ServiceResponseListener;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import world_canvas_msgs.DeleteMap;
 import world_canvas_msgs.DeleteMapRequest;
 import world_canvas_msgs.DeleteMapResponse;
@@ -22,158 +40,217 @@ import world_canvas_msgs.RenameMap;
 import world_canvas_msgs.RenameMapRequest;
 import world_canvas_msgs.RenameMapResponse;
 
-
+/**
+ * Long-lived client for the world_canvas map services.
+ *
+ * Service names are resolved once and each service client is created on first use and then
+ * kept, so every later call reuses the same persistent connection and costs one round trip.
+ * Calls return futures that fail with a {@link TimeoutException} if no response arrives in
+ * time. Calls made before the node is up are queued until it starts, and calls to a service
+ * that is not advertised yet are retried through a {@link RetryScheduler}.
+ */
 public class MapManager extends AbstractNodeMain {
 
+	public static final long DEFAULT_TIMEOUT_SECONDS = 10;
+
+	private interface RequestBuilder<T> {
+		void build(T request);
+	}
+
+	private final Map<String, ServiceClient<?, ?>> serviceClients = new HashMap<String, ServiceClient<?, ?>>();
+	private final List<Runnable> pendingCalls = new ArrayList<Runnable>();
 	private ConnectedNode connectedNode;
-	private String function;
-	private ServiceResponseListener<ListMapsResponse> listServiceResponseListener;
-	private ServiceResponseListener<PublishMapResponse> publishServiceResponseListener;
-	private ServiceResponseListener<DeleteMapResponse> deleteServiceResponseListener;
-	private ServiceResponseListener<RenameMapResponse> renameServiceResponseListener;
-	private String mapId;
-	private String mapName;
-    private NameResolver nameResolver;
-    private boolean nameResolverSet = false;
-	
+	private RetryScheduler retryScheduler;
+	private NameResolver nameResolver;
+	private long timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+
+	private String listSrvName = "list_maps";
+	private String publishSrvName = "publish_map";
+	private String deleteSrvName = "delete_map";
+	private String renameSrvName = "rename_map";
+
 	public MapManager() {
 	}
-	
-	public void setMapId(String mapId) {
-		this.mapId = mapId;
-	}
-	
-	public void setMapName(String mapName) {
-		this.mapName = mapName;
-	}
-	
-	public void setFunction(String function) {
-		this.function = function;
-	}
-	
-	public void setListService(
-			ServiceResponseListener<ListMapsResponse> listServiceResponseListener) {
-		this.listServiceResponseListener = listServiceResponseListener;
-	}
-	
-	public void setPublishService(
-			ServiceResponseListener<PublishMapResponse> publishServiceResponseListener) {
-		this.publishServiceResponseListener = publishServiceResponseListener;
-	}
-	
-	public void setDeleteService(
-			ServiceResponseListener<DeleteMapResponse> deleteServiceResponseListener) {
-		this.deleteServiceResponseListener = deleteServiceResponseListener;
-	}
-	
-	public void setRenameService(
-			ServiceResponseListener<RenameMapResponse> renameServiceResponseListener) {
-		this.renameServiceResponseListener = renameServiceResponseListener;
-	}
-
-    public void setNameResolver(NameResolver newNameResolver) {
-        nameResolver = newNameResolver;
-        nameResolverSet = true;
-    }
-	
-	public void listMaps() {
-		ServiceClient<ListMapsRequest, ListMapsResponse> listMapsClient;
-		try {
-            String srvName = "list_maps";
-            if (nameResolverSet)
-            {
-                srvName = nameResolver.resolve(srvName).toString();
-            }
-			listMapsClient = connectedNode.newServiceClient(srvName, ListMaps._TYPE);
-		} catch (ServiceNotFoundException e) {
-		          try {
-		            Thread.sleep(1000L);
-		            listMaps();
-		            return;
-		          } catch (Exception ex) {}
-		        
-		        e.printStackTrace();
-			throw new RosRuntimeException(e);
-		}
-		final ListMapsRequest request = listMapsClient.newMessage();
-		listMapsClient.call(request, listServiceResponseListener);
-	}
-	
-	public void publishMap() {
-		ServiceClient<PublishMapRequest, PublishMapResponse> publishMapClient;
-		
-		try {
-            String srvName = "publish_map";
-            if (nameResolverSet)
-            {
-                srvName = nameResolver.resolve(srvName).toString();
-            }
-            publishMapClient = connectedNode.newServiceClient(srvName, PublishMap._TYPE);
-		} catch (ServiceNotFoundException e) {
-			 try {
-		            Thread.sleep(1000L);
-		            listMaps();
-		            return;
-		          } catch (Exception ex) {}
-			throw new RosRuntimeException(e);
-		}
-		final PublishMapRequest request = publishMapClient.newMessage();
-		request.setMapId(mapId);
-		publishMapClient.call(request, publishServiceResponseListener);
-	}
-	
-	public void deleteMap() {
-		ServiceClient<DeleteMapRequest, DeleteMapResponse> deleteMapClient;
-		
-		try {
-            String srvName = "delete_map";
-            if (nameResolverSet)
-            {
-                srvName = nameResolver.resolve(srvName).toString();
-            }
-            deleteMapClient = connectedNode.newServiceClient(srvName, DeleteMap._TYPE);
-		} catch (ServiceNotFoundException e) {
-			throw new RosRuntimeException(e);
+
+	public void setNameResolver(NameResolver newNameResolver) {
+		nameResolver = newNameResolver;
+		listSrvName = nameResolver.resolve(listSrvName).toString();
+		publishSrvName = nameResolver.resolve(publishSrvName).toString();
+		deleteSrvName = nameResolver.resolve(deleteSrvName).toString();
+		renameSrvName = nameResolver.resolve(renameSrvName).toString();
+	}
+
+	public void setTimeout(long timeout, TimeUnit unit) {
+		timeoutSeconds = unit.toSeconds(timeout);
+	}
+
+	public ListenableFuture<ListMapsResponse> listMaps() {
+		return call(listSrvName, ListMaps._TYPE, new RequestBuilder<ListMapsRequest>() {
+			@Override
+			public void build(ListMapsRequest request) {
+			}
+		});
+	}
+
+	public ListenableFuture<PublishMapResponse> publishMap(final String mapId) {
+		return call(publishSrvName, PublishMap._TYPE, new RequestBuilder<PublishMapRequest>() {
+			@Override
+			public void build(PublishMapRequest request) {
+				request.setMapId(mapId);
+			}
+		});
+	}
+
+	public ListenableFuture<DeleteMapResponse> deleteMap(final String mapId) {
+		return call(deleteSrvName, DeleteMap._TYPE, new RequestBuilder<DeleteMapRequest>() {
+			@Override
+			public void build(DeleteMapRequest request) {
+				request.setMapId(mapId);
+			}
+		});
+	}
+
+	public ListenableFuture<RenameMapResponse> renameMap(final String mapId, final String mapName) {
+		return call(renameSrvName, RenameMap._TYPE, new RequestBuilder<RenameMapRequest>() {
+			@Override
+			public void build(RenameMapRequest request) {
+				request.setMapId(mapId);
+				request.setNewName(mapName);
+			}
+		});
+	}
+
+	private <T, S> ListenableFuture<S> call(final String srvName, final String srvType,
+			final RequestBuilder<T> requestBuilder) {
+		final SettableFuture<S> future = SettableFuture.create();
+		final Callable<ListenableFuture<S>> attempt = new Callable<ListenableFuture<S>>() {
+			@Override
+			public ListenableFuture<S> call() throws ServiceNotFoundException {
+				ServiceClient<T, S> client = getServiceClient(srvName, srvType);
+				final SettableFuture<S> response = SettableFuture.create();
+				T request = client.newMessage();
+				requestBuilder.build(request);
+				client.call(request, new ServiceResponseListener<S>() {
+					@Override
+					public void onSuccess(S message) {
+						response.set(message);
+					}
+
+					@Override
+					public void onFailure(RemoteException e) {
+						response.setException(e);
+					}
+				});
+				scheduleTimeout(response, srvName);
+				return response;
+			}
+		};
+		Runnable submit = new Runnable() {
+			@Override
+			public void run() {
+				forward(retryScheduler.submit(attempt), future);
+			}
+		};
+		synchronized (this) {
+			if (connectedNode == null) {
+				pendingCalls.add(submit);
+				return future;
+			}
 		}
-		final DeleteMapRequest request = deleteMapClient.newMessage();
-		request.setMapId(mapId);
-		deleteMapClient.call(request, deleteServiceResponseListener);
-	}
-	
-	public void renameMap() {
-		ServiceClient<RenameMapRequest, RenameMapResponse> renameMapClient;
-		
-		try {
-            String srvName = "rename_map";
-            if (nameResolverSet)
-            {
-                srvName = nameResolver.resolve(srvName).toString();
-            }
-            renameMapClient = connectedNode.newServiceClient(srvName, RenameMap._TYPE);
-		} catch (ServiceNotFoundException e) {
-			throw new RosRuntimeException(e);
+		submit.run();
+		return future;
+	}
+
+	private static <S> void forward(final ListenableFuture<S> from, final SettableFuture<S> to) {
+		Futures.addCallback(from, new FutureCallback<S>() {
+			@Override
+			public void onSuccess(S value) {
+				to.set(value);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				to.setException(t);
+			}
+		});
+		to.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (to.isCancelled()) {
+					from.cancel(false);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	public RetryScheduler getRetryScheduler() {
+		return retryScheduler;
+	}
+
+	/**
+	 * The node hands out the client it already has for a name, so a client that lost its
+	 * connection is shut down first; otherwise the same dead client would come back.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized <T, S> ServiceClient<T, S> getServiceClient(String srvName, String srvType)
+			throws ServiceNotFoundException {
+		ServiceClient<T, S> client = (ServiceClient<T, S>) serviceClients.get(srvName);
+		if (client == null || !client.isConnected()) {
+			if (client != null) {
+				serviceClients.remove(srvName);
+				client.shutdown();
+			}
+			client = connectedNode.newServiceClient(srvName, srvType);
+			serviceClients.put(srvName, client);
 		}
-		final RenameMapRequest request = renameMapClient.newMessage();
-		request.setMapId(mapId);
-		request.setNewName(mapName);
-		renameMapClient.call(request, renameServiceResponseListener);
+		return client;
 	}
-	
+
+	private void scheduleTimeout(final SettableFuture<?> future, final String srvName) {
+		final ScheduledFuture<?> timeout = connectedNode.getScheduledExecutorService().schedule(
+				new Runnable() {
+					@Override
+					public void run() {
+						future.setException(new TimeoutException("No response from " + srvName
+								+ " after " + timeoutSeconds + " s"));
+					}
+				}, timeoutSeconds, TimeUnit.SECONDS);
+		// Whichever of response and timeout comes first wins; the other is a no-op.
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				timeout.cancel(false);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
 	@Override
 	public GraphName getDefaultNodeName() {
 		return null;
 	}
-	
+
+	@Override
 	public void onStart(final ConnectedNode connectedNode) {
-		this.connectedNode = connectedNode;
-		if (function.equals("list")) {
-			listMaps();
-		} else if (function.equals("publish")) {
-			publishMap();
-		} else if (function.equals("delete")) {
-			deleteMap();
-		} else if (function.equals("rename")) {
-			renameMap();
-		} 
+		List<Runnable> calls;
+		synchronized (this) {
+			this.connectedNode = connectedNode;
+			retryScheduler = new RetryScheduler(connectedNode.getScheduledExecutorService());
+			calls = new ArrayList<Runnable>(pendingCalls);
+			pendingCalls.clear();
+		}
+		for (Runnable call : calls) {
+			call.run();
+		}
+	}
+
+	@Override
+	public void onShutdown(Node node) {
+		synchronized (this) {
+			for (ServiceClient<?, ?> client : serviceClients.values()) {
+				client.shutdown();
+			}
+			serviceClients.clear();
+			connectedNode = null;
+		}
 	}
 }
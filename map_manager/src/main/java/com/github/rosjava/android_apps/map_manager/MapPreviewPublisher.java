@@ -0,0 +1,218 @@
+package com.github.rosjava.android_apps.map_manager;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.ros.message.MessageListener;
+import org.ros.message.Time;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Publisher;
+import org.ros.node.topic.Subscriber;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import nav_msgs.OccupancyGrid;
+
+/**
+ * Previews stored maps on a topic private to this node, so browsing maps does not make the map
+ * store republish them on the robot's map topic, which every subscriber there, navigation
+ * included, would reload.
+ *
+ * A map's grid has to reach the device once: the first time it is previewed it is still
+ * published by the map store on the robot's map topic, and the grid that then comes in there
+ * is captured, stored in the {@link MapGridCache} and thumbnailed. From then on
+ * {@link #showCached(String)} publishes the local copy on the preview topic and nothing goes
+ * over the network.
+ *
+ * Other grids come in on the map topic too: the latched map a subscriber gets on connecting,
+ * or maps a mapper publishes periodically. A grid is therefore only captured for a map once
+ * the map store confirmed publishing it, see {@link #confirm(String)}, and only if it arrived
+ * after the request and is stamped later than any grid seen before the request. Stamps are
+ * only compared with each other, never with this device's clock.
+ *
+ * Two limitations remain, as the map store has no call that returns a grid without publishing
+ * it:
+ * <ul>
+ * <li>The first preview of each map is still published on the robot's global map topic, and
+ * whoever listens there, navigation included, reloads it.</li>
+ * <li>A mapper publishing on the map topic while a map is fetched can win the stamp check, and
+ * its grid is then cached and thumbnailed as the stored map, until the map is deleted or
+ * the cache evicts it.</li>
+ * </ul>
+ */
+public class MapPreviewPublisher extends AbstractNodeMain {
+
+	public static final String PREVIEW_TOPIC = "~map_preview";
+
+	private final String mapTopic;
+	private final MapGridCache gridCache;
+	private final MapThumbnailCache thumbnailCache;
+	private final ExecutorService executorService = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "map_preview");
+				}
+			});
+	private String expectedMapId;
+	private Time expectedAfter;
+	private boolean publishConfirmed;
+	private OccupancyGrid candidate;
+	private Time lastStamp;
+	private volatile ConnectedNode connectedNode;
+	private volatile Publisher<OccupancyGrid> publisher;
+
+	/**
+	 * @param mapTopic the robot's map topic, only listened to
+	 */
+	public MapPreviewPublisher(String mapTopic, MapGridCache gridCache,
+			MapThumbnailCache thumbnailCache) {
+		this.mapTopic = mapTopic;
+		this.gridCache = gridCache;
+		this.thumbnailCache = thumbnailCache;
+	}
+
+	/**
+	 * Preview {@code mapId} from the local copy, if there is one.
+	 *
+	 * @return a future telling whether the map was shown; if not, it has to be fetched by
+	 *         publishing it after calling {@link #expect(String)}
+	 */
+	public ListenableFuture<Boolean> showCached(final String mapId) {
+		final SettableFuture<Boolean> shown = SettableFuture.create();
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				ConnectedNode node = connectedNode;
+				Publisher<OccupancyGrid> publisher = MapPreviewPublisher.this.publisher;
+				OccupancyGrid grid = node == null ? null
+						: gridCache.get(mapId, node.getTopicMessageFactory());
+				if (grid == null || publisher == null) {
+					shown.set(false);
+					return;
+				}
+				publisher.publish(grid);
+				shown.set(true);
+			}
+		});
+		return shown;
+	}
+
+	/**
+	 * The map store is about to be asked to publish {@code mapId} on the robot's map topic:
+	 * grids from now on are candidates for it. Call before the request.
+	 */
+	public synchronized void expect(String mapId) {
+		expectedMapId = mapId;
+		expectedAfter = lastStamp;
+		publishConfirmed = false;
+		candidate = null;
+	}
+
+	/**
+	 * The map store published {@code mapId}: keep its grid, thumbnail it and preview it, now
+	 * if it already came in, otherwise as soon as it does.
+	 */
+	public void confirm(String mapId) {
+		OccupancyGrid grid;
+		synchronized (this) {
+			if (!mapId.equals(expectedMapId)) {
+				return;
+			}
+			publishConfirmed = true;
+			grid = candidate;
+		}
+		if (grid != null) {
+			capture(grid);
+		}
+	}
+
+	/**
+	 * Publishing {@code mapId} failed: capture nothing for it.
+	 */
+	public synchronized void cancel(String mapId) {
+		if (mapId.equals(expectedMapId)) {
+			expectedMapId = null;
+			candidate = null;
+		}
+	}
+
+	/**
+	 * Drop the local copies of a deleted map.
+	 */
+	public void forget(final String mapId) {
+		thumbnailCache.remove(mapId);
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				gridCache.remove(mapId);
+			}
+		});
+	}
+
+	@Override
+	public GraphName getDefaultNodeName() {
+		return null;
+	}
+
+	@Override
+	public void onStart(ConnectedNode connectedNode) {
+		publisher = connectedNode.newPublisher(PREVIEW_TOPIC, OccupancyGrid._TYPE);
+		publisher.setLatchMode(true);
+		this.connectedNode = connectedNode;
+		Subscriber<OccupancyGrid> subscriber = connectedNode.newSubscriber(mapTopic,
+				OccupancyGrid._TYPE);
+		subscriber.addMessageListener(new MessageListener<OccupancyGrid>() {
+			@Override
+			public void onNewMessage(OccupancyGrid grid) {
+				boolean captured;
+				synchronized (MapPreviewPublisher.this) {
+					Time stamp = grid.getHeader().getStamp();
+					if (lastStamp == null || stamp.compareTo(lastStamp) > 0) {
+						lastStamp = stamp;
+					}
+					if (expectedMapId == null || (expectedAfter != null
+							&& stamp.compareTo(expectedAfter) <= 0)) {
+						return;
+					}
+					candidate = grid;
+					captured = publishConfirmed;
+				}
+				if (captured) {
+					capture(grid);
+				}
+			}
+		});
+	}
+
+	private void capture(final OccupancyGrid grid) {
+		final String mapId;
+		synchronized (this) {
+			if (grid != candidate) {
+				return;
+			}
+			mapId = expectedMapId;
+			expectedMapId = null;
+			candidate = null;
+		}
+		thumbnailCache.put(mapId, grid);
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				publisher.publish(grid);
+				gridCache.put(mapId, grid);
+			}
+		});
+	}
+
+	@Override
+	public void onShutdown(Node node) {
+		connectedNode = null;
+		executorService.shutdown();
+	}
+}
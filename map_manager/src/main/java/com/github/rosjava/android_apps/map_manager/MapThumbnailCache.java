@@ -0,0 +1,220 @@
+package com.github.rosjava.android_apps.map_manager;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import nav_msgs.OccupancyGrid;
+
+/**
+ * Small previews of the stored maps, for the rows of the map list.
+ *
+ * A thumbnail is made once, by downsampling an occupancy grid the app received anyway, and is
+ * then kept in a bounded in-memory LRU and in a PNG file per map id in the app's cache
+ * directory, so later sessions show it without transferring the grid again. Downsampling and
+ * file access run on a background thread; {@link #get(String)} only ever looks in memory and
+ * schedules a disk load on a miss, reporting through the {@link Listener} when it is ready.
+ */
+public class MapThumbnailCache {
+
+	public static final int THUMBNAIL_SIZE = 96;
+	private static final int MEMORY_CACHE_BYTES = 4 * 1024 * 1024;
+	private static final String TAG = "MapThumbnailCache";
+
+	private static final int OCCUPIED_COLOR = Color.rgb(0x20, 0x20, 0x20);
+	private static final int FREE_COLOR = Color.rgb(0xf0, 0xf0, 0xf0);
+	private static final int UNKNOWN_COLOR = Color.rgb(0x80, 0x80, 0x80);
+
+	public interface Listener {
+		/** A thumbnail for this map is now in memory. Called on a background thread. */
+		void onThumbnailReady(String mapId);
+	}
+
+	private final LruCache<String, Bitmap> memoryCache = new LruCache<String, Bitmap>(
+			MEMORY_CACHE_BYTES) {
+		@Override
+		protected int sizeOf(String mapId, Bitmap bitmap) {
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	};
+	private final Set<String> loading = new HashSet<String>();
+	private final Set<String> missing = new HashSet<String>();
+	private final File directory;
+	private final ExecutorService executorService = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "map_thumbnails");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+	private Listener listener;
+
+	public MapThumbnailCache(File cacheDirectory) {
+		directory = new File(cacheDirectory, "map_thumbnails");
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * The thumbnail if it is in memory, otherwise null; a disk copy, if any, is loaded in the
+	 * background.
+	 */
+	public Bitmap get(final String mapId) {
+		Bitmap bitmap = memoryCache.get(mapId);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		synchronized (loading) {
+			if (missing.contains(mapId) || !loading.add(mapId)) {
+				return null;
+			}
+		}
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				File file = fileFor(mapId);
+				Bitmap loaded = file.exists() ? BitmapFactory.decodeFile(file.getPath()) : null;
+				synchronized (loading) {
+					loading.remove(mapId);
+					if (loaded == null) {
+						missing.add(mapId);
+					}
+				}
+				if (loaded != null) {
+					memoryCache.put(mapId, loaded);
+					notifyReady(mapId);
+				}
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Make and store the thumbnail of {@code mapId} from its grid, in the background. The grid
+	 * must not be modified afterwards.
+	 */
+	public void put(final String mapId, final OccupancyGrid grid) {
+		synchronized (loading) {
+			missing.remove(mapId);
+		}
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap bitmap = downsample(grid, THUMBNAIL_SIZE);
+				if (bitmap == null) {
+					return;
+				}
+				memoryCache.put(mapId, bitmap);
+				notifyReady(mapId);
+				writeToDisk(mapId, bitmap);
+			}
+		});
+	}
+
+	public void remove(final String mapId) {
+		memoryCache.remove(mapId);
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				fileFor(mapId).delete();
+			}
+		});
+	}
+
+	public void shutdown() {
+		executorService.shutdown();
+	}
+
+	/**
+	 * Reduce the grid to at most {@code maxSize} pixels a side. Each pixel covers a block of
+	 * cells and shows the most informative of them, occupied before free before unknown, so
+	 * thin walls survive the reduction. Row 0 of the grid is its bottom edge.
+	 */
+	static Bitmap downsample(OccupancyGrid grid, int maxSize) {
+		int width = grid.getInfo().getWidth();
+		int height = grid.getInfo().getHeight();
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		int step = Math.max(1, (Math.max(width, height) + maxSize - 1) / maxSize);
+		int outWidth = (width + step - 1) / step;
+		int outHeight = (height + step - 1) / step;
+		// 0 unknown, 1 free, 2 occupied
+		byte[] blocks = new byte[outWidth * outHeight];
+		ChannelBuffer data = grid.getData();
+		int offset = data.readerIndex();
+		for (int y = 0; y < height; y++) {
+			int blockRow = (outHeight - 1 - y / step) * outWidth;
+			int rowStart = offset + y * width;
+			for (int x = 0; x < width; x++) {
+				byte value = data.getByte(rowStart + x);
+				byte level = value < 0 ? 0 : (value > 50 ? (byte) 2 : 1);
+				int block = blockRow + x / step;
+				if (level > blocks[block]) {
+					blocks[block] = level;
+				}
+			}
+		}
+		int[] pixels = new int[blocks.length];
+		for (int i = 0; i < blocks.length; i++) {
+			pixels[i] = blocks[i] == 2 ? OCCUPIED_COLOR : (blocks[i] == 1 ? FREE_COLOR : UNKNOWN_COLOR);
+		}
+		return Bitmap.createBitmap(pixels, outWidth, outHeight, Bitmap.Config.RGB_565);
+	}
+
+	private void writeToDisk(String mapId, Bitmap bitmap) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			return;
+		}
+		File file = fileFor(mapId);
+		File temporary = new File(directory, file.getName() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temporary);
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			out.close();
+			out = null;
+			if (!temporary.renameTo(file)) {
+				temporary.delete();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not store thumbnail of " + mapId, e);
+			temporary.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private File fileFor(String mapId) {
+		return new File(directory, mapId.replaceAll("[^A-Za-z0-9_-]", "_") + ".png");
+	}
+
+	private void notifyReady(String mapId) {
+		Listener listener = this.listener;
+		if (listener != null) {
+			listener.onThumbnailReady(mapId);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.github.rosjava.android_apps.map_manager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ros.node.ConnectedNode;
+import org.ros.node.service.ServiceClient;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import world_canvas_msgs.ListMaps;
+import world_canvas_msgs.ListMapsRequest;
+import world_canvas_msgs.ListMapsResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link MapManager} keeps its service clients, against a node that, like a rosjava
+ * node, hands out the client it already has for a name until that one is shut down.
+ */
+public class MapManagerTest {
+
+    private static final String SRV_NAME = "/list_maps";
+
+    private final List<Object> created = new ArrayList<Object>();
+    private final Set<Object> disconnected = new HashSet<Object>();
+    private final Set<Object> shutDown = new HashSet<Object>();
+    private ScheduledExecutorService executorService;
+    private MapManager mapManager;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newSingleThreadScheduledExecutor();
+        mapManager = new MapManager();
+        mapManager.onStart(newNode());
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void connectedClientIsReused() throws Exception {
+        ServiceClient<ListMapsRequest, ListMapsResponse> first =
+                mapManager.getServiceClient(SRV_NAME, ListMaps._TYPE);
+        ServiceClient<ListMapsRequest, ListMapsResponse> second =
+                mapManager.getServiceClient(SRV_NAME, ListMaps._TYPE);
+        assertSame(first, second);
+        assertEquals(1, created.size());
+    }
+
+    @Test
+    public void reconnectionYieldsNewClient() throws Exception {
+        ServiceClient<ListMapsRequest, ListMapsResponse> first =
+                mapManager.getServiceClient(SRV_NAME, ListMaps._TYPE);
+        disconnected.add(first);
+        ServiceClient<ListMapsRequest, ListMapsResponse> second =
+                mapManager.getServiceClient(SRV_NAME, ListMaps._TYPE);
+        assertTrue(shutDown.contains(first));
+        assertNotSame(first, second);
+        assertEquals(2, created.size());
+        assertSame(second, mapManager.getServiceClient(SRV_NAME, ListMaps._TYPE));
+    }
+
+    private ConnectedNode newNode() {
+        return (ConnectedNode) Proxy.newProxyInstance(ConnectedNode.class.getClassLoader(),
+                new Class<?>[] { ConnectedNode.class }, new InvocationHandler() {
+                    private Object client;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getScheduledExecutorService")) {
+                            return executorService;
+                        }
+                        if (method.getName().equals("newServiceClient")) {
+                            if (client == null || shutDown.contains(client)) {
+                                client = newClient();
+                                created.add(client);
+                            }
+                            return client;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private Object newClient() {
+        return Proxy.newProxyInstance(ServiceClient.class.getClassLoader(),
+                new Class<?>[] { ServiceClient.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("isConnected")) {
+                            return !disconnected.contains(proxy) && !shutDown.contains(proxy);
+                        }
+                        if (name.equals("shutdown")) {
+                            shutDown.add(proxy);
+                            return null;
+                        }
+                        if (name.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (name.equals("toString")) {
+                            return "client" + created.indexOf(proxy);
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+}
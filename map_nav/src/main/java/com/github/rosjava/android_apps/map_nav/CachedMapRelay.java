@@ -0,0 +1,111 @@
+package com.github.rosjava.android_apps.map_nav;
+
+import android.util.Log;
+
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Subscriber;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import nav_msgs.OccupancyGrid;
+
+/**
+ * Hands the map cached by the previous session to the map layer until the live one arrives,
+ * and caches every live map for the next session.
+ *
+ * On start the cached grid, if any, is loaded in the background and passed straight to the
+ * listener, so the map layer has something to draw while the latched map is still crossing
+ * the network; nothing is published. The map layer subscribes to the map topic itself, on the
+ * same subscriber as this relay, and must ignore the cached grid once a live one got there.
+ * Live maps are written to the cache in the background, which skips the write when the
+ * cached copy is already identical.
+ */
+public class CachedMapRelay extends AbstractNodeMain {
+
+	private static final String TAG = "CachedMapRelay";
+
+	private final String mapTopic;
+	private final MapGridDiskCache diskCache;
+	private final long createdNanos = System.nanoTime();
+	private final ExecutorService executorService = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "map_cache");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+	private final MessageListener<OccupancyGrid> cachedMapListener;
+	private boolean liveMapReceived = false;
+
+	/**
+	 * @param cachedMapListener gets the cached grid, on a background thread
+	 */
+	public CachedMapRelay(String mapTopic, MapGridDiskCache diskCache,
+			MessageListener<OccupancyGrid> cachedMapListener) {
+		this.mapTopic = mapTopic;
+		this.diskCache = diskCache;
+		this.cachedMapListener = cachedMapListener;
+	}
+
+	@Override
+	public GraphName getDefaultNodeName() {
+		return null;
+	}
+
+	@Override
+	public void onStart(final ConnectedNode connectedNode) {
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				OccupancyGrid grid = diskCache.loadLast(connectedNode.getTopicMessageFactory());
+				if (grid != null && shown(false)) {
+					cachedMapListener.onNewMessage(grid);
+				}
+			}
+		});
+		Subscriber<OccupancyGrid> subscriber = connectedNode.newSubscriber(mapTopic,
+				OccupancyGrid._TYPE);
+		subscriber.addMessageListener(new MessageListener<OccupancyGrid>() {
+			@Override
+			public void onNewMessage(final OccupancyGrid grid) {
+				shown(true);
+				executorService.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (diskCache.store(grid)) {
+							Log.i(TAG, "Cached map " + MapGridDiskCache.keyOf(grid));
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return false for a cached grid once a live one got here first
+	 */
+	private synchronized boolean shown(boolean live) {
+		if (!live && liveMapReceived) {
+			return false;
+		}
+		if (!liveMapReceived) {
+			Log.i(TAG, (live ? "Live" : "Cached") + " map shown "
+					+ (System.nanoTime() - createdNanos) / 1000000 + " ms after start");
+		}
+		liveMapReceived |= live;
+		return true;
+	}
+
+	@Override
+	public void onShutdown(Node node) {
+		executorService.shutdown();
+	}
+}
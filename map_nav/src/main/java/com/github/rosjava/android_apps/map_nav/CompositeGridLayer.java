@@ -0,0 +1,277 @@
+package com.github.rosjava.android_apps.map_nav;
+
+import com.github.rosjava.android_apps.common.GridColors;
+import com.github.rosjava.android_apps.common.TiledGrid;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.ros.android.view.visualization.VisualizationView;
+import org.ros.android.view.visualization.layer.DefaultLayer;
+import org.ros.android.view.visualization.layer.Layer;
+import org.ros.android.view.visualization.layer.TfLayer;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Subscriber;
+import org.ros.rosjava_geometry.Transform;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import nav_msgs.OccupancyGrid;
+
+/**
+ * Draws a map and a costmap, as one grid while they line up.
+ *
+ * When both have the same frame, size, resolution and origin, as a global costmap has with its
+ * map, each cell of a single composite grid holds the map cell in its top bits and the cost in
+ * its low bits, and is drawn in the colors of {@link GridColors#newCompositeTable()}: one set
+ * of tiles, one conversion and one draw call per tile instead of two. A new costmap only
+ * rewrites the cost bits, and the composite grid reconverts the tiles where they changed; a
+ * new map likewise only rewrites the map bits. The composite grid is never downsampled: the
+ * highest value of packed cells would mix the fields of different cells, and rank free and
+ * unknown cells, whose top bit is set, below walls.
+ *
+ * Otherwise, e.g. under a local costmap that rolls with the robot, the two are drawn as
+ * separate grids: the map by this layer and the costmap by {@link #getCostmapLayer()}, which
+ * is to be added to the view right after this one and draws nothing while composited. A
+ * costmap small enough for one texture then goes into a {@link RollingGrid}, which follows
+ * the window as it moves instead of starting over; a larger one into a {@link TiledGrid}.
+ * Costmaps are taken in through a {@link ThrottledListener} either way.
+ */
+public class CompositeGridLayer extends DefaultLayer implements TfLayer {
+
+    public static final double DEFAULT_COSTMAP_MAX_RATE_HZ = 2;
+
+    private final GraphName mapTopic;
+    private final GraphName costmapTopic;
+    private final double costmapMaxRateHz;
+    private final TiledGrid mapGrid = new TiledGrid(GridColors.newMapTable());
+    private final TiledGrid costmapGrid = new TiledGrid(GridColors.newCostmapTable());
+    private final RollingGrid rollingCostmapGrid = new RollingGrid(GridColors.newCostmapTable());
+    private final TiledGrid compositeGrid = new TiledGrid(GridColors.newCompositeTable(), false);
+    private final byte[] mapBits = GridColors.newCompositeMapBits();
+    private final byte[] costBits = GridColors.newCompositeCostBits();
+    private final CostmapPart costmapLayer = new CostmapPart();
+
+    private Subscriber<OccupancyGrid> mapSubscriber;
+    private Subscriber<OccupancyGrid> costmapSubscriber;
+    private ThrottledListener<OccupancyGrid> costmapListener;
+    private OccupancyGrid map;
+    private boolean liveMapReceived = false;
+    private OccupancyGrid costmap;
+    private volatile boolean composited = false;
+    private volatile boolean rolling = false;
+    private byte[] cells;
+    private byte[] scratch;
+
+    /**
+     * @param costmapMaxRateHz costmaps taken in per second at most; non-positive for the
+     *     default
+     */
+    public CompositeGridLayer(String mapTopic, String costmapTopic, double costmapMaxRateHz) {
+        this.mapTopic = GraphName.of(mapTopic);
+        this.costmapTopic = GraphName.of(costmapTopic);
+        this.costmapMaxRateHz = costmapMaxRateHz > 0 ? costmapMaxRateHz
+                : DEFAULT_COSTMAP_MAX_RATE_HZ;
+    }
+
+    /**
+     * The layer drawing the costmap when it cannot be composited with the map.
+     */
+    public Layer getCostmapLayer() {
+        return costmapLayer;
+    }
+
+    public boolean isComposited() {
+        return composited;
+    }
+
+    public TiledGrid getMapGrid() {
+        return mapGrid;
+    }
+
+    public TiledGrid getCostmapGrid() {
+        return costmapGrid;
+    }
+
+    public RollingGrid getRollingCostmapGrid() {
+        return rollingCostmapGrid;
+    }
+
+    public TiledGrid getCompositeGrid() {
+        return compositeGrid;
+    }
+
+    /**
+     * Draw a map kept from an earlier session until the live one arrives; ignored after that.
+     */
+    public void setCachedMap(OccupancyGrid cachedMap) {
+        update(cachedMap, null, false);
+    }
+
+    /**
+     * @return the throttle in front of the costmap, null before the layer starts
+     */
+    public ThrottledListener<OccupancyGrid> getCostmapThrottle() {
+        return costmapListener;
+    }
+
+    @Override
+    public void onStart(VisualizationView view, ConnectedNode connectedNode) {
+        mapSubscriber = connectedNode.newSubscriber(mapTopic, OccupancyGrid._TYPE);
+        mapSubscriber.addMessageListener(new MessageListener<OccupancyGrid>() {
+            @Override
+            public void onNewMessage(OccupancyGrid message) {
+                update(message, null, true);
+            }
+        });
+        costmapListener = new ThrottledListener<OccupancyGrid>(
+                new MessageListener<OccupancyGrid>() {
+                    @Override
+                    public void onNewMessage(OccupancyGrid message) {
+                        update(null, message, false);
+                    }
+                }, costmapMaxRateHz, connectedNode.getScheduledExecutorService());
+        costmapSubscriber = connectedNode.newSubscriber(costmapTopic, OccupancyGrid._TYPE);
+        costmapSubscriber.addMessageListener(costmapListener);
+    }
+
+    @Override
+    public void onShutdown(VisualizationView view, Node node) {
+        mapSubscriber.shutdown();
+        costmapSubscriber.shutdown();
+    }
+
+    @Override
+    public void draw(VisualizationView view, GL10 gl) {
+        if (composited) {
+            compositeGrid.draw(view, gl);
+        } else {
+            mapGrid.draw(view, gl);
+        }
+    }
+
+    @Override
+    public GraphName getFrame() {
+        return composited ? compositeGrid.getFrame() : mapGrid.getFrame();
+    }
+
+    /**
+     * Take in a new map or costmap and bring the grids in line with the pair.
+     */
+    private synchronized void update(OccupancyGrid newMap, OccupancyGrid newCostmap,
+                                     boolean liveMap) {
+        if (newMap != null && !liveMap && liveMapReceived) {
+            return;
+        }
+        liveMapReceived |= liveMap;
+        boolean mapChanged = newMap != null;
+        boolean costmapChanged = newCostmap != null;
+        if (mapChanged) {
+            map = newMap;
+        }
+        if (costmapChanged) {
+            costmap = newCostmap;
+        }
+        if (map != null && costmap != null && sameGeometry(map, costmap)) {
+            int size = map.getInfo().getWidth() * map.getInfo().getHeight();
+            if (!composited || cells.length != size) {
+                cells = new byte[size];
+                scratch = new byte[size];
+                mapChanged = true;
+                costmapChanged = true;
+            }
+            if (mapChanged) {
+                merge(map.getData(), mapBits, GridColors.COMPOSITE_COST_MASK);
+            }
+            if (costmapChanged) {
+                merge(costmap.getData(), costBits, GridColors.COMPOSITE_MAP_MASK);
+            }
+            compositeGrid.update(GraphName.of(map.getHeader().getFrameId()),
+                    Transform.fromPoseMessage(map.getInfo().getOrigin()),
+                    map.getInfo().getResolution(), map.getInfo().getWidth(),
+                    map.getInfo().getHeight(), ChannelBuffers.wrappedBuffer(cells));
+            if (!composited) {
+                composited = true;
+                mapGrid.clear();
+                costmapGrid.clear();
+                rollingCostmapGrid.clear();
+            }
+        } else {
+            if (composited) {
+                composited = false;
+                compositeGrid.clear();
+                cells = null;
+                scratch = null;
+                mapChanged = map != null;
+                costmapChanged = costmap != null;
+            }
+            if (mapChanged) {
+                mapGrid.update(map);
+            }
+            if (costmapChanged) {
+                updateCostmap(costmap);
+            }
+        }
+    }
+
+    private void updateCostmap(OccupancyGrid grid) {
+        boolean fits = RollingGrid.fits(grid);
+        if (fits != rolling) {
+            rolling = fits;
+            if (rolling) {
+                costmapGrid.clear();
+            } else {
+                rollingCostmapGrid.clear();
+            }
+        }
+        if (rolling) {
+            rollingCostmapGrid.update(grid);
+        } else {
+            costmapGrid.update(grid);
+        }
+    }
+
+    /**
+     * Replace one channel of the composite cells.
+     *
+     * @param bits the bits of that channel for each cell value
+     * @param keepMask the bits of the other channel
+     */
+    private void merge(ChannelBuffer data, byte[] bits, int keepMask) {
+        data.getBytes(data.readerIndex(), scratch, 0, scratch.length);
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = (byte) ((cells[i] & keepMask) | bits[scratch[i] & 0xff]);
+        }
+    }
+
+    private static boolean sameGeometry(OccupancyGrid a, OccupancyGrid b) {
+        return a.getHeader().getFrameId().equals(b.getHeader().getFrameId())
+                && a.getInfo().getWidth() == b.getInfo().getWidth()
+                && a.getInfo().getHeight() == b.getInfo().getHeight()
+                && a.getInfo().getResolution() == b.getInfo().getResolution()
+                && Transform.fromPoseMessage(a.getInfo().getOrigin()).almostEquals(
+                        Transform.fromPoseMessage(b.getInfo().getOrigin()), 1e-6);
+    }
+
+    private class CostmapPart extends DefaultLayer implements TfLayer {
+
+        @Override
+        public void draw(VisualizationView view, GL10 gl) {
+            if (composited) {
+                return;
+            }
+            if (rolling) {
+                rollingCostmapGrid.draw(gl);
+            } else {
+                costmapGrid.draw(view, gl);
+            }
+        }
+
+        @Override
+        public GraphName getFrame() {
+            return rolling ? rollingCostmapGrid.getFrame() : costmapGrid.getFrame();
+        }
+    }
+}
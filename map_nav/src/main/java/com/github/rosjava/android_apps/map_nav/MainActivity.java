@@ -20,40 +20,50 @@ import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
-
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+
+import com.github.rosjava.android_apps.common.CameraStreamSelector;
+import com.github.rosjava.android_apps.common.CameraView;
+import com.github.rosjava.android_apps.common.DecimatedLaserScanLayer;
+import com.github.rosjava.android_apps.common.JoystickView;
+import com.github.rosjava.android_apps.common.MapCatalogIndex;
+import com.github.rosjava.android_apps.common.NodeMainHost;
+import com.github.rosjava.android_apps.common.PooledBitmapFromCompressedImage;
+import com.github.rosjava.android_apps.common.VelocityPublisher;
 import com.github.rosjava.android_remocons.common_tools.apps.RosAppActivity;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
 
 import org.ros.address.InetAddressFactory;
-import org.ros.android.BitmapFromCompressedImage;
-import org.ros.android.view.RosImageView;
-import org.ros.android.view.VirtualJoystickView;
 import org.ros.android.view.visualization.VisualizationView;
 import org.ros.android.view.visualization.layer.CameraControlListener;
-import org.ros.android.view.visualization.layer.LaserScanLayer;
 import org.ros.android.view.visualization.layer.Layer;
-import org.ros.android.view.visualization.layer.OccupancyGridLayer;
 import org.ros.android.view.visualization.layer.PathLayer;
-import org.ros.exception.RemoteException;
+import org.ros.message.MessageListener;
 import org.ros.namespace.NameResolver;
 import org.ros.node.NodeConfiguration;
 import org.ros.node.NodeMainExecutor;
-import org.ros.node.service.ServiceResponseListener;
 import org.ros.time.NtpTimeProvider;
 import org.ros.time.TimeProvider;
 import org.ros.time.WallTimeProvider;
 
-import java.sql.Date;
-import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import nav_msgs.OccupancyGrid;
 import world_canvas_msgs.ListMapsResponse;
 import world_canvas_msgs.MapListEntry;
 import world_canvas_msgs.PublishMapResponse;
@@ -64,8 +74,9 @@ import world_canvas_msgs.PublishMapResponse;
 public class MainActivity extends RosAppActivity {
 	private static final String TAG = "MapNav";
 
-	private RosImageView<sensor_msgs.CompressedImage> cameraView;
-	private VirtualJoystickView virtualJoystickView;
+	private CameraView cameraView;
+	private volatile CameraStreamSelector cameraStreamSelector;
+	private JoystickView virtualJoystickView;
 	private VisualizationView mapView;
     private ViewGroup mainLayout;
 	private ViewGroup sideLayout;
@@ -74,8 +85,10 @@ public class MainActivity extends RosAppActivity {
 	private com.github.rosjava.android_apps.map_nav.MapPosePublisherLayer mapPosePublisherLayer;
 	private ProgressDialog waitingDialog;
 	private AlertDialog chooseMapDialog;
+	private MapCatalogIndex mapCatalogIndex = new MapCatalogIndex();
 	private NodeMainExecutor nodeMainExecutor;
 	private NodeConfiguration nodeConfiguration;
+	private NodeMainHost nodeMainHost;
 
 	public MainActivity() {
 		// The RosActivity constructor configures the notification title and
@@ -96,10 +109,10 @@ public class MainActivity extends RosAppActivity {
 		setMainWindowResource(R.layout.main);
 		super.onCreate(savedInstanceState);
 
-		cameraView = (RosImageView<sensor_msgs.CompressedImage>) findViewById(R.id.image);
+		cameraView = (CameraView) findViewById(R.id.image);
 		cameraView.setMessageType(sensor_msgs.CompressedImage._TYPE);
-		cameraView.setMessageToBitmapCallable(new BitmapFromCompressedImage());
-		virtualJoystickView = (VirtualJoystickView) findViewById(R.id.virtual_joystick);
+		cameraView.setMessageToBitmapCallable(new PooledBitmapFromCompressedImage());
+		virtualJoystickView = (JoystickView) findViewById(R.id.virtual_joystick);
 		backButton = (Button) findViewById(R.id.back_button);
 		chooseMapButton = (Button) findViewById(R.id.choose_map_button);
         mapView = (VisualizationView) findViewById(R.id.map_view);
@@ -124,6 +137,33 @@ public class MainActivity extends RosAppActivity {
 
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		cameraView.setPaused(false);
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.resume();
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		// Stop pulling camera frames over the network while nobody can see them.
+		cameraView.setPaused(true);
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.pause();
+		}
+		super.onPause();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.stop();
+		}
+		super.onDestroy();
+	}
+
 	@Override
 	protected void init(NodeMainExecutor nodeMainExecutor) {
 
@@ -132,18 +172,21 @@ public class MainActivity extends RosAppActivity {
 		this.nodeMainExecutor = nodeMainExecutor;
 		nodeConfiguration = NodeConfiguration.newPublic(InetAddressFactory
 				.newNonLoopback().getHostAddress(), getMasterUri());
+		// All widgets and service calls share one node: one master registration, one set of sockets.
+		nodeMainHost = new NodeMainHost("android/map_nav");
 
         String joyTopic = remaps.get(getString(R.string.joystick_topic));
         String camTopic = remaps.get(getString(R.string.camera_topic));
 
 		NameResolver appNameSpace = getMasterNameSpace();
         cameraView.setTopicName(appNameSpace.resolve(camTopic).toString());
+        startCameraStreamSelector(appNameSpace, nodeMainExecutor);
         virtualJoystickView.setTopicName(appNameSpace.resolve(joyTopic).toString());
+        virtualJoystickView.setPublishRate(Double.parseDouble(
+                params.get("cmd_vel_rate", VelocityPublisher.DEFAULT_RATE_HZ).toString()));
 
-		nodeMainExecutor.execute(cameraView,
-				nodeConfiguration.setNodeName("android/camera_view"));
-		nodeMainExecutor.execute(virtualJoystickView,
-				nodeConfiguration.setNodeName("android/virtual_joystick"));
+		nodeMainHost.addNodeMain(cameraView);
+		nodeMainHost.addNodeMain(virtualJoystickView);
 
         com.github.rosjava.android_apps.map_nav.ViewControlLayer viewControlLayer =
                 new com.github.rosjava.android_apps.map_nav.ViewControlLayer(this,
@@ -157,9 +200,19 @@ public class MainActivity extends RosAppActivity {
         String initTopic     = remaps.get(getString(R.string.initial_pose_topic));
         String robotFrame    = (String) params.get("robot_frame", getString(R.string.robot_frame));
 
-        OccupancyGridLayer mapLayer = new OccupancyGridLayer(appNameSpace.resolve(mapTopic).toString());
-        OccupancyGridLayer costmapLayer = new OccupancyGridLayer(appNameSpace.resolve(costmapTopic).toString());
-        LaserScanLayer laserScanLayer = new LaserScanLayer(appNameSpace.resolve(scanTopic).toString());
+        // Map and costmap share one grid whenever the costmap lines up with the map.
+        final CompositeGridLayer mapLayer = new CompositeGridLayer(appNameSpace.resolve(mapTopic).toString(),
+                appNameSpace.resolve(costmapTopic).toString(),
+                Double.parseDouble(params.get("costmap_rate", CompositeGridLayer.DEFAULT_COSTMAP_MAX_RATE_HZ).toString()));
+        // Until the latched map comes over, the map layer draws the one cached by the last session.
+        nodeMainHost.addNodeMain(new CachedMapRelay(appNameSpace.resolve(mapTopic).toString(),
+                new MapGridDiskCache(getCacheDir()), new MessageListener<OccupancyGrid>() {
+                    @Override
+                    public void onNewMessage(OccupancyGrid grid) {
+                        mapLayer.setCachedMap(grid);
+                    }
+                }));
+        DecimatedLaserScanLayer laserScanLayer = new DecimatedLaserScanLayer(appNameSpace.resolve(scanTopic).toString());
         PathLayer pathLayer = new PathLayer(appNameSpace.resolve(planTopic).toString());
         mapPosePublisherLayer = new com.github.rosjava.android_apps.map_nav.MapPosePublisherLayer(this, appNameSpace, params, remaps);
         com.github.rosjava.android_apps.map_nav.InitialPoseSubscriberLayer initialPoseSubscriberLayer =
@@ -167,7 +220,7 @@ public class MainActivity extends RosAppActivity {
 
         mapView.addLayer(viewControlLayer);
         mapView.addLayer(mapLayer);
-        mapView.addLayer(costmapLayer);
+        mapView.addLayer(mapLayer.getCostmapLayer());
         mapView.addLayer(laserScanLayer);
         mapView.addLayer(pathLayer);
         mapView.addLayer(mapPosePublisherLayer);
@@ -197,7 +250,9 @@ public class MainActivity extends RosAppActivity {
 			timeProvider = new WallTimeProvider();
 		}
 		nodeConfiguration.setTimeProvider(timeProvider);
-		nodeMainExecutor.execute(mapView, nodeConfiguration.setNodeName("android/map_view"));
+		nodeMainHost.addNodeMain(mapView);
+		nodeMainExecutor.execute(nodeMainHost,
+				nodeConfiguration.setNodeName(nodeMainHost.getDefaultNodeName()));
 	}
 
 	private void onChooseMapButtonPressed() {
@@ -223,72 +278,103 @@ public class MainActivity extends RosAppActivity {
 	private void readAvailableMapList() {
 		safeShowWaitingDialog("Waiting...", "Waiting for map list");
 
-        com.github.rosjava.android_apps.map_nav.MapManager mapManager = new com.github.rosjava.android_apps.map_nav.MapManager(this, remaps);
+        final com.github.rosjava.android_apps.map_nav.MapManager mapManager = new com.github.rosjava.android_apps.map_nav.MapManager(this, remaps);
         mapManager.setNameResolver(getMasterNameSpace());
 		mapManager.setFunction("list");
 		safeShowWaitingDialog("Waiting...", "Waiting for map list");
-		mapManager.setListService(new ServiceResponseListener<ListMapsResponse>() {
+		mapManager.setListService(new FutureCallback<ListMapsResponse>() {
 					@Override
 					public void onSuccess(ListMapsResponse message) {
+						nodeMainHost.removeNodeMain(mapManager);
 						Log.i(TAG, "readAvailableMapList() Success");
 						safeDismissWaitingDialog();
 						showMapListDialog(message.getMapList());
 					}
 
 					@Override
-					public void onFailure(RemoteException e) {
+					public void onFailure(Throwable t) {
+						nodeMainHost.removeNodeMain(mapManager);
 						Log.i(TAG, "readAvailableMapList() Failure");
 						safeDismissWaitingDialog();
 					}
 				});
 
-		nodeMainExecutor.execute(mapManager,
-				nodeConfiguration.setNodeName("android/list_maps"));
+		nodeMainHost.executeOnce(mapManager);
 	}
 
 	/**
-	 * Show a dialog with a list of maps. Safe to call from any thread.
+	 * Show a dialog with a searchable list of maps. Safe to call from any thread.
 	 */
 	private void showMapListDialog(final List<MapListEntry> list) {
-		// Make an array of map name/date strings.
-		final CharSequence[] availableMapNames = new CharSequence[list.size()];
-		for (int i = 0; i < list.size(); i++) {
-			String displayString;
-			String name = list.get(i).getName();
-			Date creationDate = new Date(list.get(i).getDate() * 1000);
-			String dateTime = DateFormat.getDateTimeInstance(DateFormat.MEDIUM,
-					DateFormat.SHORT).format(creationDate);
-			if (name != null && !name.equals("")) {
-				displayString = name + " " + dateTime;
-			} else {
-				displayString = dateTime;
-			}
-			availableMapNames[i] = displayString;
-		}
-
 		runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
+				// Display strings are kept in the index across dialogs, so only maps that are
+				// new or changed since the last time get formatted.
+				mapCatalogIndex.build(list);
+				final List<MapListEntry> shown = new ArrayList<MapListEntry>(list);
+				final ArrayAdapter<String> adapter = new ArrayAdapter<String>(
+						MainActivity.this, android.R.layout.simple_list_item_1,
+						new ArrayList<String>());
+				fillMapList(adapter, shown);
+
+				final EditText searchField = new EditText(MainActivity.this);
+				searchField.setHint(R.string.search_maps);
+				searchField.setSingleLine(true);
+				ListView listView = new ListView(MainActivity.this);
+				listView.setAdapter(adapter);
+				LinearLayout layout = new LinearLayout(MainActivity.this);
+				layout.setOrientation(LinearLayout.VERTICAL);
+				layout.addView(searchField);
+				layout.addView(listView);
+
+				searchField.addTextChangedListener(new TextWatcher() {
+					@Override
+					public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+					}
+
+					@Override
+					public void onTextChanged(CharSequence s, int start, int before, int count) {
+					}
+
+					@Override
+					public void afterTextChanged(Editable s) {
+						shown.clear();
+						shown.addAll(mapCatalogIndex.query(s.toString(),
+								MapCatalogIndex.SortOrder.SERVER));
+						fillMapList(adapter, shown);
+					}
+				});
+				listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+					@Override
+					public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+						safeDismissChooseMapDialog();
+						loadMap(shown.get(position));
+					}
+				});
+
 				AlertDialog.Builder builder = new AlertDialog.Builder(
 						MainActivity.this);
 				builder.setTitle("Choose a map");
-				builder.setItems(availableMapNames,
-						new DialogInterface.OnClickListener() {
-							@Override
-							public void onClick(DialogInterface dialog,
-									int itemIndex) {
-								loadMap(list.get(itemIndex));
-							}
-						});
+				builder.setView(layout);
 				chooseMapDialog = builder.create();
 				chooseMapDialog.show();
 			}
 		});
 	}
 
+	private void fillMapList(ArrayAdapter<String> adapter, List<MapListEntry> entries) {
+		adapter.setNotifyOnChange(false);
+		adapter.clear();
+		for (MapListEntry entry : entries) {
+			adapter.add(mapCatalogIndex.getDisplayString(entry.getMapId()));
+		}
+		adapter.notifyDataSetChanged();
+	}
+
 	private void loadMap(MapListEntry mapListEntry) {
 
-        com.github.rosjava.android_apps.map_nav.MapManager mapManager = new com.github.rosjava.android_apps.map_nav.MapManager(this, remaps);
+        final com.github.rosjava.android_apps.map_nav.MapManager mapManager = new com.github.rosjava.android_apps.map_nav.MapManager(this, remaps);
         mapManager.setNameResolver(getMasterNameSpace());
 		mapManager.setFunction("publish");
 		mapManager.setMapId(mapListEntry.getMapId());
@@ -296,16 +382,18 @@ public class MainActivity extends RosAppActivity {
 		safeShowWaitingDialog("Waiting...", "Loading map");
 		try {
 			mapManager
-					.setPublishService(new ServiceResponseListener<PublishMapResponse>() {
+					.setPublishService(new FutureCallback<PublishMapResponse>() {
 						@Override
 						public void onSuccess(PublishMapResponse message) {
+							nodeMainHost.removeNodeMain(mapManager);
 							Log.i(TAG, "loadMap() Success");
 							safeDismissWaitingDialog();
 							// poseSetter.enable();
 						}
 
 						@Override
-						public void onFailure(RemoteException e) {
+						public void onFailure(Throwable t) {
+							nodeMainHost.removeNodeMain(mapManager);
 							Log.i(TAG, "loadMap() Failure");
 							safeDismissWaitingDialog();
 						}
@@ -314,8 +402,7 @@ public class MainActivity extends RosAppActivity {
 			Log.e(TAG, "loadMap() caught exception.", ex);
 			safeDismissWaitingDialog();
 		}
-		nodeMainExecutor.execute(mapManager,
-				nodeConfiguration.setNodeName("android/publish_map"));
+		nodeMainHost.executeOnce(mapManager);
 	}
 
 	private void safeDismissChooseMapDialog() {
@@ -364,6 +451,21 @@ public class MainActivity extends RosAppActivity {
 		});
 	}
 
+	/**
+	 * If the app lists alternative camera streams (best first), let the selector pick the
+	 * best one the link can sustain.
+	 */
+	private void startCameraStreamSelector(NameResolver appNameSpace, NodeMainExecutor nodeMainExecutor) {
+		List<String> camTopics = new ArrayList<String>();
+		for (String topic : CameraStreamSelector.parseTopics(params.get("camera_topic_candidates", ""))) {
+			camTopics.add(appNameSpace.resolve(topic).toString());
+		}
+		if (camTopics.size() > 1) {
+			cameraStreamSelector = new CameraStreamSelector(cameraView, camTopics);
+			cameraStreamSelector.start(nodeMainExecutor.getScheduledExecutorService());
+		}
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		menu.add(0, 0, 0, R.string.stop_app);
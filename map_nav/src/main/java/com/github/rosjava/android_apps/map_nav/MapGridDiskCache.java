@@ -0,0 +1,256 @@
+package com.github.rosjava.android_apps.map_nav;
+
+import android.util.Log;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.ros.message.MessageFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import geometry_msgs.Pose;
+import nav_msgs.OccupancyGrid;
+
+/**
+ * The last occupancy grid received on the map topic, kept on the device so the next start can
+ * draw it before the live map has come over the network.
+ *
+ * Each grid lives in a file named after a hash of its metadata (frame, resolution, size and
+ * origin), which identifies the map well enough to tell a stale copy from the current one; a
+ * small pointer file names the most recent. Files are memory-mapped: a stored grid is written
+ * with a single bulk copy, and a loaded grid's cells are the mapped pages themselves, so
+ * nothing is copied or parsed per cell and the OS pages in only what is read.
+ *
+ * Disk access blocks; use it from a background thread.
+ */
+public class MapGridDiskCache {
+
+	private static final int MAGIC = 0x4d475244; // "MGRD"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 4 + 7 * 8 + 256;
+	private static final String LAST_FILE = "last";
+	private static final String TAG = "MapGridDiskCache";
+
+	private final File directory;
+
+	public MapGridDiskCache(File cacheDirectory) {
+		directory = new File(cacheDirectory, "map_grid");
+	}
+
+	/**
+	 * The most recently stored grid, or null if there is none or it cannot be read.
+	 */
+	public OccupancyGrid loadLast(MessageFactory messageFactory) {
+		String key = readLastKey();
+		if (key == null) {
+			return null;
+		}
+		File file = new File(directory, key);
+		try {
+			return read(file, messageFactory);
+		} catch (IOException e) {
+			Log.w(TAG, "Dropping unreadable cached map " + key, e);
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Store {@code grid} as the most recent one, unless the stored copy is identical already.
+	 *
+	 * @return true if the grid had to be written
+	 */
+	public boolean store(OccupancyGrid grid) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			return false;
+		}
+		String key = keyOf(grid);
+		File file = new File(directory, key);
+		boolean written = false;
+		try {
+			if (!sameCells(file, grid)) {
+				File temporary = new File(directory, key + ".tmp");
+				write(temporary, grid);
+				if (!temporary.renameTo(file)) {
+					temporary.delete();
+					return false;
+				}
+				written = true;
+			}
+			writeLastKey(key);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not cache map " + key, e);
+			return false;
+		}
+		// Only the latest map is worth keeping.
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File other : files) {
+				if (!other.getName().equals(key) && !other.getName().equals(LAST_FILE)) {
+					other.delete();
+				}
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * File name identifying a map by its metadata.
+	 */
+	static String keyOf(OccupancyGrid grid) {
+		Pose origin = grid.getInfo().getOrigin();
+		long hash = 1125899906842597L;
+		hash = 31 * hash + grid.getHeader().getFrameId().hashCode();
+		hash = 31 * hash + Float.floatToIntBits(grid.getInfo().getResolution());
+		hash = 31 * hash + grid.getInfo().getWidth();
+		hash = 31 * hash + grid.getInfo().getHeight();
+		hash = 31 * hash + Double.doubleToLongBits(origin.getPosition().getX());
+		hash = 31 * hash + Double.doubleToLongBits(origin.getPosition().getY());
+		hash = 31 * hash + Double.doubleToLongBits(origin.getPosition().getZ());
+		hash = 31 * hash + Double.doubleToLongBits(origin.getOrientation().getX());
+		hash = 31 * hash + Double.doubleToLongBits(origin.getOrientation().getY());
+		hash = 31 * hash + Double.doubleToLongBits(origin.getOrientation().getZ());
+		hash = 31 * hash + Double.doubleToLongBits(origin.getOrientation().getW());
+		return "grid_" + Long.toHexString(hash);
+	}
+
+	private static int cellCount(OccupancyGrid grid) {
+		return grid.getInfo().getWidth() * grid.getInfo().getHeight();
+	}
+
+	private static void write(File file, OccupancyGrid grid) throws IOException {
+		int cells = cellCount(grid);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(HEADER_BYTES + cells);
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_BYTES + cells);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			Pose origin = grid.getInfo().getOrigin();
+			byte[] frameId = grid.getHeader().getFrameId().getBytes("UTF-8");
+			buffer.putInt(MAGIC);
+			buffer.putInt(FORMAT_VERSION);
+			buffer.putFloat(grid.getInfo().getResolution());
+			buffer.putInt(grid.getInfo().getWidth());
+			buffer.putInt(grid.getInfo().getHeight());
+			buffer.putDouble(origin.getPosition().getX());
+			buffer.putDouble(origin.getPosition().getY());
+			buffer.putDouble(origin.getPosition().getZ());
+			buffer.putDouble(origin.getOrientation().getX());
+			buffer.putDouble(origin.getOrientation().getY());
+			buffer.putDouble(origin.getOrientation().getZ());
+			buffer.putDouble(origin.getOrientation().getW());
+			int frameIdLength = Math.min(frameId.length, 255);
+			buffer.put((byte) frameIdLength);
+			buffer.put(frameId, 0, frameIdLength);
+			buffer.position(HEADER_BYTES);
+			ChannelBuffer data = grid.getData();
+			ByteBuffer cellsOut = buffer.slice();
+			cellsOut.limit(cells);
+			data.getBytes(data.readerIndex(), cellsOut);
+			buffer.force();
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static OccupancyGrid read(File file, MessageFactory messageFactory) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException("Truncated cached map");
+			}
+			// The mapping stays valid after the file is closed.
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+				throw new IOException("Unknown cached map format");
+			}
+			OccupancyGrid grid = messageFactory.newFromType(OccupancyGrid._TYPE);
+			Pose origin = grid.getInfo().getOrigin();
+			grid.getInfo().setResolution(buffer.getFloat());
+			grid.getInfo().setWidth(buffer.getInt());
+			grid.getInfo().setHeight(buffer.getInt());
+			origin.getPosition().setX(buffer.getDouble());
+			origin.getPosition().setY(buffer.getDouble());
+			origin.getPosition().setZ(buffer.getDouble());
+			origin.getOrientation().setX(buffer.getDouble());
+			origin.getOrientation().setY(buffer.getDouble());
+			origin.getOrientation().setZ(buffer.getDouble());
+			origin.getOrientation().setW(buffer.getDouble());
+			byte[] frameId = new byte[buffer.get() & 0xff];
+			buffer.get(frameId);
+			grid.getHeader().setFrameId(new String(frameId, "UTF-8"));
+			int cells = cellCount(grid);
+			if (cells < 0 || channel.size() < HEADER_BYTES + (long) cells) {
+				throw new IOException("Truncated cached map");
+			}
+			buffer.position(HEADER_BYTES);
+			ByteBuffer cellsIn = buffer.slice();
+			cellsIn.limit(cells);
+			grid.setData(ChannelBuffers.wrappedBuffer(cellsIn.order(ByteOrder.LITTLE_ENDIAN)));
+			return grid;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Whether {@code file} already holds exactly these cells; the metadata is implied by the
+	 * file name.
+	 */
+	private static boolean sameCells(File file, OccupancyGrid grid) throws IOException {
+		int cells = cellCount(grid);
+		if (!file.exists() || file.length() != HEADER_BYTES + (long) cells) {
+			return false;
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer stored = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					HEADER_BYTES, cells);
+			ChannelBuffer data = grid.getData();
+			return ChannelBuffers.wrappedBuffer(stored).equals(data.slice(data.readerIndex(), cells));
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private String readLastKey() {
+		File file = new File(directory, LAST_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readUTF();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void writeLastKey(String key) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				new File(directory, LAST_FILE)));
+		try {
+			out.writeUTF(key);
+		} finally {
+			out.close();
+		}
+	}
+}
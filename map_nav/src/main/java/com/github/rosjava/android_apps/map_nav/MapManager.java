@@ -2,17 +2,30 @@ package com.github.rosjava.android_apps.map_nav;
 
 import android.content.Context;
 
+import com.github.rosjava.android_apps.common.RetryScheduler;
 import com.github.rosjava.android_remocons.common_tools.apps.AppRemappings;
 
-import org.ros.exception.RosRuntimeException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.ros.exception.RemoteException;
 import org.ros.exception.ServiceNotFoundException;
 import org.ros.namespace.GraphName;
 import org.ros.namespace.NameResolver;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
 import org.ros.node.service.ServiceClient;
 import org.ros.node.service.ServiceResponseListener;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import world_canvas_msgs.ListMaps;
 import world_canvas_msgs.ListMapsRequest;
 import world_canvas_msgs.ListMapsResponse;
@@ -22,16 +35,21 @@ import world_canvas_msgs.PublishMapResponse;
 
 public class MapManager extends AbstractNodeMain {
 
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
 	private ConnectedNode connectedNode;
+	private RetryScheduler retryScheduler;
+	private ServiceClient<?, ?> client;
 	private String function;
-	private ServiceResponseListener<ListMapsResponse> listServiceResponseListener;
-	private ServiceResponseListener<PublishMapResponse> publishServiceResponseListener;
+	private FutureCallback<ListMapsResponse> listServiceCallback;
+	private FutureCallback<PublishMapResponse> publishServiceCallback;
 
 	private String mapId;
     private String listSrvName;
     private String pubSrvName;
     private NameResolver nameResolver;
     private boolean nameResolverSet = false;
+	private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
 	
 	public MapManager(final Context context, final AppRemappings remaps) {
         // Apply remappings
@@ -51,64 +69,116 @@ public class MapManager extends AbstractNodeMain {
     public void setFunction(String function) {
 		this.function = function;
 	}
+
+	public void setTimeout(long timeout, TimeUnit unit) {
+		timeoutMillis = unit.toMillis(timeout);
+	}
 	
-	public void setListService(
-			ServiceResponseListener<ListMapsResponse> listServiceResponseListener) {
-		this.listServiceResponseListener = listServiceResponseListener;
+	/**
+	 * @param listServiceCallback gets the response, or the {@link RemoteException} of a failed
+	 *     call, a {@link TimeoutException} once the timeout expires, or whatever else kept the
+	 *     call from being made; it is called exactly once
+	 */
+	public void setListService(FutureCallback<ListMapsResponse> listServiceCallback) {
+		this.listServiceCallback = listServiceCallback;
 	}
 	
-	public void setPublishService(
-			ServiceResponseListener<PublishMapResponse> publishServiceResponseListener) {
-		this.publishServiceResponseListener = publishServiceResponseListener;
+	public void setPublishService(FutureCallback<PublishMapResponse> publishServiceCallback) {
+		this.publishServiceCallback = publishServiceCallback;
 	}
 
 	public void listMaps() {
-		ServiceClient<ListMapsRequest, ListMapsResponse> listMapsClient;
-		try
-        {
-            if (nameResolverSet)
-            {
-                listSrvName = nameResolver.resolve(listSrvName).toString();
-            }
-			listMapsClient = connectedNode.newServiceClient(listSrvName, ListMaps._TYPE);
-		} catch (ServiceNotFoundException e) {
-		          try {
-		            Thread.sleep(1000L);
-		            listMaps();
-		            return;
-		          } catch (Exception ex) {}
-		        
-		        e.printStackTrace();
-			throw new RosRuntimeException(e);
+		if (nameResolverSet) {
+			listSrvName = nameResolver.resolve(listSrvName).toString();
+			nameResolverSet = false;
 		}
-		final ListMapsRequest request = listMapsClient.newMessage();
-		listMapsClient.call(request, listServiceResponseListener);
+		call(listSrvName, ListMaps._TYPE, new RequestBuilder<ListMapsRequest>() {
+			@Override
+			public void build(ListMapsRequest request) {
+			}
+		}, listServiceCallback);
 	}
 	
 	public void publishMap() {
-		ServiceClient<PublishMapRequest, PublishMapResponse> publishMapClient;
-		
-		try
-        {
-            if (nameResolverSet)
-            {
-                pubSrvName = nameResolver.resolve(pubSrvName).toString();
-            }
-			publishMapClient = connectedNode.newServiceClient(pubSrvName, PublishMap._TYPE);
-		} catch (ServiceNotFoundException e) {
-			 try {
-		            Thread.sleep(1000L);
-		            listMaps();
-		            return;
-		          } catch (Exception ex) {}
-			throw new RosRuntimeException(e);
+		if (nameResolverSet) {
+			pubSrvName = nameResolver.resolve(pubSrvName).toString();
+			nameResolverSet = false;
 		}
-		final PublishMapRequest request = publishMapClient.newMessage();
-		request.setMapId(mapId);
-		publishMapClient.call(request, publishServiceResponseListener);
+		call(pubSrvName, PublishMap._TYPE, new RequestBuilder<PublishMapRequest>() {
+			@Override
+			public void build(PublishMapRequest request) {
+				request.setMapId(mapId);
+			}
+		}, publishServiceCallback);
+	}
+
+	public RetryScheduler getRetryScheduler() {
+		return retryScheduler;
 	}
-	
 
+	private interface RequestBuilder<T> {
+		void build(T request);
+	}
+
+	/**
+	 * Call the service through the retry scheduler, so a server that is still starting is
+	 * waited for without blocking the node's thread. A service that never answers fails the
+	 * call with a {@link TimeoutException}, so the callback always gets to run.
+	 */
+	private <T, S> void call(final String srvName, final String srvType,
+			final RequestBuilder<T> requestBuilder, final FutureCallback<S> callback) {
+		final SettableFuture<S> result = SettableFuture.create();
+		Futures.addCallback(result, callback);
+		final ListenableFuture<S> attempts = retryScheduler.submit(new Callable<ListenableFuture<S>>() {
+			@Override
+			public ListenableFuture<S> call() throws ServiceNotFoundException {
+				ServiceClient<T, S> client = connectedNode.newServiceClient(srvName, srvType);
+				MapManager.this.client = client;
+				final SettableFuture<S> response = SettableFuture.create();
+				T request = client.newMessage();
+				requestBuilder.build(request);
+				client.call(request, new ServiceResponseListener<S>() {
+					@Override
+					public void onSuccess(S message) {
+						response.set(message);
+					}
+
+					@Override
+					public void onFailure(RemoteException e) {
+						response.setException(e);
+					}
+				});
+				return response;
+			}
+		});
+		Futures.addCallback(attempts, new FutureCallback<S>() {
+			@Override
+			public void onSuccess(S message) {
+				result.set(message);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				result.setException(t);
+			}
+		});
+		// Whichever of response and timeout comes first wins; the other is a no-op.
+		final ScheduledFuture<?> timeout = connectedNode.getScheduledExecutorService().schedule(
+				new Runnable() {
+					@Override
+					public void run() {
+						result.setException(new TimeoutException("No response from "
+								+ srvName + " after " + timeoutMillis + " ms"));
+					}
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				timeout.cancel(false);
+				attempts.cancel(false);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
 	
 	@Override
 	public GraphName getDefaultNodeName() {
@@ -117,11 +187,20 @@ public class MapManager extends AbstractNodeMain {
 	
 	public void onStart(final ConnectedNode connectedNode) {
 		this.connectedNode = connectedNode;
+		retryScheduler = new RetryScheduler(connectedNode.getScheduledExecutorService());
 		if (function.equals("list")) {
 			listMaps();
 		} else if (function.equals("publish")) {
 			publishMap();
 		}
 	}
+
+	@Override
+	public void onShutdown(Node node) {
+		if (client != null) {
+			client.shutdown();
+			client = null;
+		}
+	}
 }
 
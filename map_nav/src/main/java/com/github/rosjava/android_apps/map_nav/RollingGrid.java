@@ -0,0 +1,379 @@
+package com.github.rosjava.android_apps.map_nav;
+
+import com.github.rosjava.android_apps.common.TiledGrid;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.android.view.visualization.OpenGlTransform;
+import org.ros.namespace.GraphName;
+import org.ros.rosjava_geometry.Transform;
+import org.ros.rosjava_geometry.Vector3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import nav_msgs.OccupancyGrid;
+
+/**
+ * A rolling window grid, like a local costmap, kept in one wrapping texture.
+ *
+ * Cells are stored at their world position modulo the texture size, so when the window moves
+ * by whole cells with the robot, every cell that stays in the window stays where it is in the
+ * texture; only the offset at which the window starts moves, and the texture is drawn with
+ * repeat wrapping from that offset. Each grid is compared against the stored cells at the
+ * same world positions, which turns up the strips the move exposed as well as any cost that
+ * changed inside the window. Only those cells are converted and uploaded, as rectangles of
+ * rows with the same changed span. A grid with a new size, resolution, frame or orientation,
+ * or moved by a fraction of a cell, starts the texture over.
+ *
+ * Meant for windows up to {@link #MAX_SIZE} cells a side; larger grids belong in a
+ * {@link TiledGrid}. Updates may come from any thread; drawing happens on the GL thread.
+ */
+public class RollingGrid {
+
+    public static final int MAX_SIZE = 1024;
+    /** More pending rectangles than this are uploaded as a whole texture instead. */
+    private static final int MAX_PENDING_RECTS = 32;
+
+    private final int[] colors;
+    private final List<int[]> pendingRects = new ArrayList<int[]>();
+    private final FloatBuffer vertices = newFloatBuffer(8);
+    private final FloatBuffer textureCoordinates = newFloatBuffer(8);
+
+    private GraphName frame;
+    private Transform origin;
+    private float resolution;
+    private int width;
+    private int height;
+    private int textureWidth;
+    private int textureHeight;
+    private int originCellX;
+    private int originCellY;
+    private byte[] cells;
+    private byte[] rowScratch;
+    private boolean resized = false;
+    private boolean fullUpload = false;
+    private boolean released = false;
+    private int textureId = 0;
+    private IntBuffer pixels;
+    private int[] rowPixels;
+
+    private long updateCount = 0;
+    private long resetCount = 0;
+    private long convertedCellCount = 0;
+
+    public RollingGrid(int[] colors) {
+        this.colors = colors;
+    }
+
+    /**
+     * @return true if the grid is small enough for a single texture
+     */
+    public static boolean fits(OccupancyGrid grid) {
+        return grid.getInfo().getWidth() <= MAX_SIZE && grid.getInfo().getHeight() <= MAX_SIZE;
+    }
+
+    public synchronized GraphName getFrame() {
+        return frame;
+    }
+
+    /**
+     * Take in a full grid message.
+     */
+    public synchronized void update(OccupancyGrid grid) {
+        updateCount++;
+        GraphName newFrame = GraphName.of(grid.getHeader().getFrameId());
+        int newWidth = grid.getInfo().getWidth();
+        int newHeight = grid.getInfo().getHeight();
+        float newResolution = grid.getInfo().getResolution();
+        Transform newOrigin = Transform.fromPoseMessage(grid.getInfo().getOrigin());
+        int[] shift = null;
+        if (cells != null && newFrame.equals(frame) && newWidth == width && newHeight == height
+                && newResolution == resolution) {
+            shift = cellShift(newOrigin);
+        }
+        frame = newFrame;
+        origin = newOrigin;
+        if (shift == null) {
+            reset(newWidth, newHeight, newResolution, grid.getData());
+            return;
+        }
+        originCellX += shift[0];
+        originCellY += shift[1];
+        copyChangedCells(grid.getData());
+    }
+
+    /**
+     * Drop the grid; nothing is drawn until the next update.
+     */
+    public synchronized void clear() {
+        cells = null;
+        frame = null;
+        origin = null;
+        pendingRects.clear();
+        released = true;
+    }
+
+    /**
+     * Number of grids taken in, of those that started the texture over, and of cells
+     * converted for them, to check how much work the rolling saves.
+     */
+    public synchronized long getUpdateCount() {
+        return updateCount;
+    }
+
+    public synchronized long getResetCount() {
+        return resetCount;
+    }
+
+    public synchronized long getConvertedCellCount() {
+        return convertedCellCount;
+    }
+
+    /**
+     * Draw the window in its frame. GL thread only.
+     */
+    public void draw(GL10 gl) {
+        Transform originToDraw;
+        synchronized (this) {
+            if (released && textureId != 0) {
+                gl.glDeleteTextures(1, new int[] { textureId }, 0);
+                textureId = 0;
+            }
+            released = false;
+            if (cells == null) {
+                return;
+            }
+            upload(gl);
+            float cellWidth = width * resolution;
+            float cellHeight = height * resolution;
+            vertices.put(0, 0).put(1, 0).put(2, cellWidth).put(3, 0)
+                    .put(4, 0).put(5, cellHeight).put(6, cellWidth).put(7, cellHeight);
+            float left = (float) floorMod(originCellX, textureWidth) / textureWidth;
+            float bottom = (float) floorMod(originCellY, textureHeight) / textureHeight;
+            float right = left + (float) width / textureWidth;
+            float top = bottom + (float) height / textureHeight;
+            textureCoordinates.put(0, left).put(1, bottom).put(2, right).put(3, bottom)
+                    .put(4, left).put(5, top).put(6, right).put(7, top);
+            originToDraw = origin;
+        }
+        gl.glPushMatrix();
+        OpenGlTransform.apply(gl, originToDraw);
+        gl.glEnable(GL10.GL_TEXTURE_2D);
+        gl.glEnable(GL10.GL_BLEND);
+        gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+        gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+        gl.glColor4f(1, 1, 1, 1);
+        gl.glVertexPointer(2, GL10.GL_FLOAT, 0, vertices);
+        gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, textureCoordinates);
+        gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
+        gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+        gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, 0);
+        gl.glDisable(GL10.GL_TEXTURE_2D);
+        gl.glPopMatrix();
+    }
+
+    /**
+     * Bring the texture up to date with the cells. Called with the lock held.
+     */
+    private void upload(GL10 gl) {
+        if (textureId == 0) {
+            int[] ids = new int[1];
+            gl.glGenTextures(1, ids, 0);
+            textureId = ids[0];
+            resized = true;
+        }
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, textureId);
+        if (resized) {
+            // Nearest on both ends: a filtered texel at the wrap would mix in the far edge.
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_NEAREST);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_REPEAT);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_REPEAT);
+            if (pixels == null || pixels.capacity() < textureWidth * textureHeight) {
+                pixels = ByteBuffer.allocateDirect(textureWidth * textureHeight * 4)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+            rowPixels = new int[textureWidth];
+            convert(0, 0, textureWidth, textureHeight);
+            gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, textureWidth, textureHeight, 0,
+                    GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixels);
+        } else if (fullUpload) {
+            convert(0, 0, textureWidth, textureHeight);
+            gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, 0, textureWidth, textureHeight,
+                    GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixels);
+        } else {
+            for (int[] rect : pendingRects) {
+                convert(rect[0], rect[1], rect[2], rect[3]);
+                gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, rect[0], rect[1], rect[2], rect[3],
+                        GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixels);
+            }
+        }
+        resized = false;
+        fullUpload = false;
+        pendingRects.clear();
+    }
+
+    /**
+     * Convert a rectangle of the texture into the front of the pixel buffer, packed.
+     */
+    private void convert(int x, int y, int rectWidth, int rectHeight) {
+        pixels.position(0);
+        for (int row = y; row < y + rectHeight; row++) {
+            int cell = row * textureWidth + x;
+            for (int column = 0; column < rectWidth; column++) {
+                rowPixels[column] = colors[cells[cell++] & 0xff];
+            }
+            pixels.put(rowPixels, 0, rectWidth);
+        }
+        pixels.position(0);
+    }
+
+    /**
+     * @return the move from the current origin to the new one in whole cells, or null if it
+     *     is not a pure move by whole cells
+     */
+    private int[] cellShift(Transform newOrigin) {
+        Transform delta = origin.invert().multiply(newOrigin);
+        Vector3 translation = delta.getTranslation();
+        if (!delta.almostEquals(Transform.translation(translation), 1e-6)) {
+            return null;
+        }
+        double x = translation.getX() / resolution;
+        double y = translation.getY() / resolution;
+        long cellX = Math.round(x);
+        long cellY = Math.round(y);
+        if (Math.abs(x - cellX) > 0.01 || Math.abs(y - cellY) > 0.01
+                || Math.abs(translation.getZ()) > 1e-6) {
+            return null;
+        }
+        return new int[] { (int) cellX, (int) cellY };
+    }
+
+    private void reset(int newWidth, int newHeight, float newResolution, ChannelBuffer data) {
+        resetCount++;
+        width = newWidth;
+        height = newHeight;
+        resolution = newResolution;
+        int newTextureWidth = powerOfTwoAtLeast(width);
+        int newTextureHeight = powerOfTwoAtLeast(height);
+        resized |= newTextureWidth != textureWidth || newTextureHeight != textureHeight;
+        fullUpload = true;
+        textureWidth = newTextureWidth;
+        textureHeight = newTextureHeight;
+        originCellX = 0;
+        originCellY = 0;
+        cells = new byte[textureWidth * textureHeight];
+        rowScratch = new byte[width];
+        pendingRects.clear();
+        int offset = data.readerIndex();
+        for (int row = 0; row < height; row++) {
+            data.getBytes(offset + row * width, cells, row * textureWidth, width);
+        }
+        convertedCellCount += (long) textureWidth * textureHeight;
+    }
+
+    /**
+     * Store the grid at its world positions, collecting the changed cells as rectangles of
+     * consecutive rows that changed over the same span.
+     */
+    private void copyChangedCells(ChannelBuffer data) {
+        int offset = data.readerIndex();
+        int firstColumn = floorMod(originCellX, textureWidth);
+        int runStart = -1;
+        int runMin = 0;
+        int runMax = 0;
+        for (int row = 0; row < height; row++) {
+            data.getBytes(offset + row * width, rowScratch, 0, width);
+            int rowStart = floorMod(originCellY + row, textureHeight) * textureWidth;
+            int column = firstColumn;
+            int min = -1;
+            int max = -1;
+            for (int x = 0; x < width; x++) {
+                int cell = rowStart + column;
+                if (cells[cell] != rowScratch[x]) {
+                    cells[cell] = rowScratch[x];
+                    if (min < 0) {
+                        min = x;
+                    }
+                    max = x;
+                }
+                if (++column == textureWidth) {
+                    column = 0;
+                }
+            }
+            if (runStart >= 0 && (min != runMin || max != runMax)) {
+                addChangedRect(runMin, runStart, runMax + 1, row);
+                runStart = -1;
+            }
+            if (min >= 0 && runStart < 0) {
+                runStart = row;
+                runMin = min;
+                runMax = max;
+            }
+        }
+        if (runStart >= 0) {
+            addChangedRect(runMin, runStart, runMax + 1, height);
+        }
+    }
+
+    /**
+     * Queue a rectangle of the window for upload, cut where it wraps around the texture.
+     */
+    private void addChangedRect(int minX, int minY, int maxX, int maxY) {
+        int x = floorMod(originCellX + minX, textureWidth);
+        int y = floorMod(originCellY + minY, textureHeight);
+        int rectWidth = maxX - minX;
+        int rectHeight = maxY - minY;
+        convertedCellCount += (long) rectWidth * rectHeight;
+        if (fullUpload) {
+            return;
+        }
+        int[] widths = splitAtWrap(x, rectWidth, textureWidth);
+        int[] heights = splitAtWrap(y, rectHeight, textureHeight);
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                if (widths[i] > 0 && heights[j] > 0) {
+                    pendingRects.add(new int[] { i == 0 ? x : 0, j == 0 ? y : 0,
+                            widths[i], heights[j] });
+                }
+            }
+        }
+        if (pendingRects.size() > MAX_PENDING_RECTS) {
+            pendingRects.clear();
+            fullUpload = true;
+        }
+    }
+
+    /**
+     * @return the lengths before and after the wrap of a span starting at {@code start}
+     */
+    private static int[] splitAtWrap(int start, int length, int size) {
+        int first = Math.min(length, size - start);
+        return new int[] { first, length - first };
+    }
+
+    private static int floorMod(int value, int modulus) {
+        int result = value % modulus;
+        return result < 0 ? result + modulus : result;
+    }
+
+    private static int powerOfTwoAtLeast(int value) {
+        int result = 1;
+        while (result < value) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private static FloatBuffer newFloatBuffer(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.rosjava.android_apps.map_nav;
+
+import org.ros.message.MessageListener;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes messages on at a bounded rate, always ending with the newest one.
+ *
+ * Messages that arrive within the period of the last one passed on are held back; when the
+ * period is over only the newest of them goes on and the others are dropped unseen.
+ */
+public class ThrottledListener<T> implements MessageListener<T> {
+
+    private final MessageListener<T> listener;
+    private final ScheduledExecutorService executorService;
+    private final long periodNanos;
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private T pending;
+    private boolean flushScheduled = false;
+    private long lastPassedNanos;
+    private long receivedCount = 0;
+    private long passedCount = 0;
+
+    /**
+     * @param maxRateHz messages passed on per second at most
+     * @param executorService runs the listener for held back messages
+     */
+    public ThrottledListener(MessageListener<T> listener, double maxRateHz,
+                             ScheduledExecutorService executorService) {
+        this.listener = listener;
+        this.executorService = executorService;
+        periodNanos = (long) (1e9 / maxRateHz);
+        lastPassedNanos = System.nanoTime() - periodNanos;
+    }
+
+    /**
+     * Messages received and messages passed on, to check what the throttling saves.
+     */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized long getPassedCount() {
+        return passedCount;
+    }
+
+    @Override
+    public void onNewMessage(T message) {
+        long delay;
+        synchronized (this) {
+            receivedCount++;
+            pending = message;
+            if (flushScheduled) {
+                return;
+            }
+            delay = lastPassedNanos + periodNanos - System.nanoTime();
+            flushScheduled = delay > 0;
+        }
+        if (delay > 0) {
+            executorService.schedule(flush, delay, TimeUnit.NANOSECONDS);
+        } else {
+            flush();
+        }
+    }
+
+    private void flush() {
+        T message;
+        synchronized (this) {
+            message = pending;
+            pending = null;
+            flushScheduled = false;
+            if (message == null) {
+                return;
+            }
+            lastPassedNanos = System.nanoTime();
+            passedCount++;
+        }
+        listener.onNewMessage(message);
+    }
+}
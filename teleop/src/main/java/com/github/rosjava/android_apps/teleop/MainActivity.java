@@ -21,25 +21,40 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
-
+import android.widget.TextView;
+
+import com.github.rosjava.android_apps.common.CameraLatencyMetrics;
+import com.github.rosjava.android_apps.common.CameraStreamSelector;
+import com.github.rosjava.android_apps.common.CameraView;
+import com.github.rosjava.android_apps.common.JoystickView;
+import com.github.rosjava.android_apps.common.NodeMainHost;
+import com.github.rosjava.android_apps.common.PooledBitmapFromCompressedImage;
+import com.github.rosjava.android_apps.common.VelocityPublisher;
 import com.github.rosjava.android_remocons.common_tools.apps.RosAppActivity;
 
-import org.ros.android.BitmapFromCompressedImage;
-import org.ros.android.view.RosImageView;
-import org.ros.android.view.VirtualJoystickView;
 import org.ros.namespace.NameResolver;
 import org.ros.node.NodeConfiguration;
 import org.ros.node.NodeMainExecutor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * @author murase@jsk.imi.i.u-tokyo.ac.jp (Kazuto Murase)
  */
 public class MainActivity extends RosAppActivity {
-	private RosImageView<sensor_msgs.CompressedImage> cameraView;
-	private VirtualJoystickView virtualJoystickView;
+	private static final int STOP_APP_ITEM_ID = 0;
+	private static final int CAMERA_STATS_ITEM_ID = 1;
+	private static final long CAMERA_STATS_PERIOD_MS = 1000;
+
+	private CameraView cameraView;
+	private volatile CameraStreamSelector cameraStreamSelector;
+	private JoystickView virtualJoystickView;
 	private Button backButton;
+	private TextView cameraStatsView;
+	private CameraLatencyMetrics.Snapshot lastCameraStats;
 
 	public MainActivity() {
 		// The RosActivity constructor configures the notification title and ticker messages.
@@ -54,10 +69,11 @@ public class MainActivity extends RosAppActivity {
 		setMainWindowResource(R.layout.main);
 		super.onCreate(savedInstanceState);
 
-        cameraView = (RosImageView<sensor_msgs.CompressedImage>) findViewById(R.id.image);
+        cameraView = (CameraView) findViewById(R.id.image);
         cameraView.setMessageType(sensor_msgs.CompressedImage._TYPE);
-        cameraView.setMessageToBitmapCallable(new BitmapFromCompressedImage());
-        virtualJoystickView = (VirtualJoystickView) findViewById(R.id.virtual_joystick);
+        cameraView.setMessageToBitmapCallable(new PooledBitmapFromCompressedImage());
+        virtualJoystickView = (JoystickView) findViewById(R.id.virtual_joystick);
+        cameraStatsView = (TextView) findViewById(R.id.camera_stats);
         backButton = (Button) findViewById(R.id.back_button);
         backButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -67,6 +83,33 @@ public class MainActivity extends RosAppActivity {
         });
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		cameraView.setPaused(false);
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.resume();
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		// Stop pulling camera frames over the network while nobody can see them.
+		cameraView.setPaused(true);
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.pause();
+		}
+		super.onPause();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (cameraStreamSelector != null) {
+			cameraStreamSelector.stop();
+		}
+		super.onDestroy();
+	}
+
 	@Override
 	protected void init(NodeMainExecutor nodeMainExecutor) {
 		
@@ -87,21 +130,72 @@ public class MainActivity extends RosAppActivity {
         camTopic = appNameSpace.resolve(camTopic).toString();
 
 		cameraView.setTopicName(camTopic);
+		startCameraStreamSelector(appNameSpace, nodeMainExecutor);
         virtualJoystickView.setTopicName(joyTopic);
+        virtualJoystickView.setPublishRate(Double.parseDouble(
+                params.get("cmd_vel_rate", VelocityPublisher.DEFAULT_RATE_HZ).toString()));
 		
-		nodeMainExecutor.execute(cameraView, nodeConfiguration
-				.setNodeName("android/camera_view"));
-		nodeMainExecutor.execute(virtualJoystickView,
-				nodeConfiguration.setNodeName("android/virtual_joystick"));
+		// Camera and joystick share one node: one master registration, one set of sockets.
+		NodeMainHost nodeMainHost = new NodeMainHost("android/teleop");
+		nodeMainHost.addNodeMain(cameraView);
+		nodeMainHost.addNodeMain(virtualJoystickView);
+		nodeMainExecutor.execute(nodeMainHost, nodeConfiguration
+				.setNodeName(nodeMainHost.getDefaultNodeName()));
         } catch (IOException e) {
             // Socket problem
         }
 
 	}
 	
+	/**
+	 * If the app lists alternative camera streams (best first), let the selector pick the
+	 * best one the link can sustain.
+	 */
+	private void startCameraStreamSelector(NameResolver appNameSpace, NodeMainExecutor nodeMainExecutor) {
+		List<String> camTopics = new ArrayList<String>();
+		for (String topic : CameraStreamSelector.parseTopics(params.get("camera_topic_candidates", ""))) {
+			camTopics.add(appNameSpace.resolve(topic).toString());
+		}
+		if (camTopics.size() > 1) {
+			cameraStreamSelector = new CameraStreamSelector(cameraView, camTopics);
+			cameraStreamSelector.start(nodeMainExecutor.getScheduledExecutorService());
+		}
+	}
+
+	/**
+	 * Toggle the on-screen camera latency overlay. It shows the receive-to-draw latency
+	 * measured on this device only; the network part depends on the robot's clock offset.
+	 */
+	private void toggleCameraStats() {
+		if (cameraStatsView.getVisibility() == View.VISIBLE) {
+			cameraStatsView.removeCallbacks(updateCameraStats);
+			cameraStatsView.setVisibility(View.GONE);
+		} else {
+			lastCameraStats = cameraView.getMetrics().getSnapshot();
+			cameraStatsView.setText("");
+			cameraStatsView.setVisibility(View.VISIBLE);
+			cameraStatsView.postDelayed(updateCameraStats, CAMERA_STATS_PERIOD_MS);
+		}
+	}
+
+	private final Runnable updateCameraStats = new Runnable() {
+		@Override
+		public void run() {
+			CameraLatencyMetrics.Snapshot stats = cameraView.getMetrics().getSnapshot();
+			cameraStatsView.setText(String.format(Locale.US,
+					"on-device p50/p95/p99 %.0f/%.0f/%.0f ms  rx %.1f  dec %.1f  drop %.1f fps",
+					stats.localP50Ms, stats.localP95Ms, stats.localP99Ms,
+					stats.receivedRate(lastCameraStats), stats.decodedRate(lastCameraStats),
+					stats.droppedRate(lastCameraStats)));
+			lastCameraStats = stats;
+			cameraStatsView.postDelayed(this, CAMERA_STATS_PERIOD_MS);
+		}
+	};
+
 	  @Override
 	  public boolean onCreateOptionsMenu(Menu menu){
-		  menu.add(0,0,0,R.string.stop_app);
+		  menu.add(0,STOP_APP_ITEM_ID,0,R.string.stop_app);
+		  menu.add(0,CAMERA_STATS_ITEM_ID,0,R.string.camera_stats);
 
 		  return super.onCreateOptionsMenu(menu);
 	  }
@@ -110,9 +204,12 @@ public class MainActivity extends RosAppActivity {
 	  public boolean onOptionsItemSelected(MenuItem item){
 		  super.onOptionsItemSelected(item);
 		  switch (item.getItemId()){
-		  case 0:
+		  case STOP_APP_ITEM_ID:
 			  onDestroy();
 			  break;
+		  case CAMERA_STATS_ITEM_ID:
+			  toggleCameraStats();
+			  break;
 		  }
 		  return true;
 	  }